@@ -0,0 +1,30 @@
+package com.wayfair.javafroid.benchmarks;
+
+import com.wayfair.javafroid.Codec;
+import com.wayfair.javafroid.codec.AesGcmCodec;
+import java.util.Arrays;
+
+/**
+ * The codecs ids are benchmarked with: none, the default, and encryption.
+ */
+public enum BenchmarkCodec {
+  IDENTITY {
+    @Override
+    Codec create() {
+      return null;
+    }
+  },
+  AES_GCM {
+    @Override
+    Codec create() {
+      byte[] key = new byte[32];
+      Arrays.fill(key, (byte) 7);
+      return new AesGcmCodec(key);
+    }
+  };
+
+  /**
+   * @return The codec, or null for Froid's default
+   */
+  abstract Codec create();
+}
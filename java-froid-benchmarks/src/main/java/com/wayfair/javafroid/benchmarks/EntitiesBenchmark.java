@@ -0,0 +1,50 @@
+package com.wayfair.javafroid.benchmarks;
+
+import com.wayfair.javafroid.Froid;
+import com.wayfair.javafroid.model.EntitiesResponse;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ID generation for _entities batches, {@link Froid#generateEntityObjectWithId(List)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EntitiesBenchmark {
+
+  @Param({"1", "10", "100", "1000", "10000"})
+  int batchSize;
+
+  @Param({"IDENTITY", "AES_GCM"})
+  BenchmarkCodec codec;
+
+  private Froid froid;
+  private List<Map<String, Object>> representations;
+
+  @Setup
+  public void setup() {
+    froid = Froid.builder().setCodec(codec.create()).build();
+    representations = Fixtures.representations(batchSize);
+  }
+
+  @Benchmark
+  public EntitiesResponse generateEntityObjectWithId() {
+    return froid.generateEntityObjectWithId(representations);
+  }
+}
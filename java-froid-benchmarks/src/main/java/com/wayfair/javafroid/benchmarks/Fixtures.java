@@ -0,0 +1,66 @@
+package com.wayfair.javafroid.benchmarks;
+
+import com.wayfair.javafroid.Froid;
+import com.wayfair.javafroid.model.Entity;
+import com.wayfair.javafroid.model.EntitiesResponse;
+import com.wayfair.javafroid.model.Request;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Representations and node queries shaped like the ones a federation gateway sends.
+ */
+final class Fixtures {
+
+  private Fixtures() {
+  }
+
+  static List<Map<String, Object>> representations(int size) {
+    List<Map<String, Object>> representations = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      Map<String, Object> representation = new HashMap<>();
+      representation.put("__typename", "DemoEdition");
+      representation.put("bookId", i);
+      representation.put("isbn", String.format("978%010d", i));
+      representations.add(representation);
+    }
+    return representations;
+  }
+
+  static List<String> ids(Froid froid, int size) {
+    EntitiesResponse response = froid.generateEntityObjectWithId(representations(size));
+    return response.getData().getEntities().stream().map(Entity::getId).collect(Collectors.toList());
+  }
+
+  /**
+   * A query with a node field per id, aliased a0, a1, ..., with the ids written in the query or passed as
+   * variables.
+   */
+  static Request nodeRequest(List<String> ids, boolean variableIds) {
+    StringBuilder query = new StringBuilder("query");
+    Map<String, Object> variables = new HashMap<>();
+    if (variableIds) {
+      query.append(" (");
+      for (int i = 0; i < ids.size(); i++) {
+        query.append(i == 0 ? "" : ", ").append("$id").append(i).append(":ID!");
+        variables.put("id" + i, ids.get(i));
+      }
+      query.append(")");
+    }
+    query.append(" {");
+    for (int i = 0; i < ids.size(); i++) {
+      query.append("a").append(i).append(":node(id:");
+      if (variableIds) {
+        query.append("$id").append(i);
+      } else {
+        query.append('"').append(ids.get(i)).append('"');
+      }
+      query.append("){__typename ...on DemoEdition{bookId isbn}}");
+    }
+    query.append("}");
+    return Request.builder().setQuery(query.toString()).setVariables(variables).build();
+  }
+}
@@ -0,0 +1,40 @@
+package com.wayfair.javafroid.benchmarks;
+
+import com.wayfair.javafroid.Froid;
+import graphql.relay.Relay.ResolvedGlobalId;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The public global id helpers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GlobalIdBenchmark {
+
+  private final Froid froid = Froid.builder().build();
+  private final String id = "eyJib29rSWQiOjEsImlzYm4iOiI5NzgwMDAwMDAwMDAxIn0=";
+  private final String globalId = froid.toGlobalId("DemoEdition", id);
+
+  @Benchmark
+  public String toGlobalId() {
+    return froid.toGlobalId("DemoEdition", id);
+  }
+
+  @Benchmark
+  public ResolvedGlobalId fromGlobalId() {
+    return froid.fromGlobalId(globalId);
+  }
+}
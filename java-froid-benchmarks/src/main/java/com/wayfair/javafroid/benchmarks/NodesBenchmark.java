@@ -0,0 +1,77 @@
+package com.wayfair.javafroid.benchmarks;
+
+import com.wayfair.javafroid.DocumentProvider;
+import com.wayfair.javafroid.Froid;
+import com.wayfair.javafroid.model.Request;
+import graphql.language.Document;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Entity object resolution for node queries, from parsing the query to decoding every id.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NodesBenchmark {
+
+  /**
+   * How a query becomes a plan: parsed every time, parsed once by a caching DocumentProvider and compiled every
+   * time, or compiled once into Froid's plan cache.
+   */
+  public enum Documents {
+    PARSE,
+    CACHED_DOCUMENT,
+    CACHED_PLAN
+  }
+
+  @Param({"1", "100"})
+  int aliases;
+
+  @Param({"false", "true"})
+  boolean variableIds;
+
+  @Param({"IDENTITY", "AES_GCM"})
+  BenchmarkCodec codec;
+
+  @Param({"PARSE", "CACHED_DOCUMENT", "CACHED_PLAN"})
+  Documents documents;
+
+  private Froid froid;
+  private Request request;
+
+  @Setup
+  public void setup() {
+    Froid.Builder builder = Froid.builder().setCodec(codec.create());
+    if (documents != Documents.CACHED_PLAN) {
+      builder.setPlanCacheSize(0);
+    }
+    if (documents == Documents.CACHED_DOCUMENT) {
+      Map<String, Document> cache = new ConcurrentHashMap<>();
+      DocumentProvider cachingProvider = (query, parseFunction) -> cache.computeIfAbsent(query, parseFunction);
+      builder.setDocumentProvider(cachingProvider);
+    }
+    froid = builder.build();
+    request = Fixtures.nodeRequest(Fixtures.ids(froid, aliases), variableIds);
+  }
+
+  @Benchmark
+  public Object handleFroidRequest() {
+    return froid.handleFroidRequest(request);
+  }
+}
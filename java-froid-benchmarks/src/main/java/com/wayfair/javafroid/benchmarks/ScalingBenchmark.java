@@ -0,0 +1,91 @@
+package com.wayfair.javafroid.benchmarks;
+
+import com.wayfair.javafroid.Froid;
+import com.wayfair.javafroid.model.EntitiesResponse;
+import com.wayfair.javafroid.model.Request;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One Froid shared by a growing number of threads, to show how throughput scales across cores. The per-thread
+ * buffers and the caches are exercised concurrently; the total throughput of a run is the sum over its threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScalingBenchmark {
+
+  private Froid froid;
+  private List<Map<String, Object>> representations;
+  private Request request;
+
+  @Setup
+  public void setup() {
+    froid = Froid.builder().setCodec(BenchmarkCodec.AES_GCM.create()).build();
+    representations = Fixtures.representations(100);
+    request = Fixtures.nodeRequest(Fixtures.ids(froid, 10), true);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public EntitiesResponse entities1Thread() {
+    return froid.generateEntityObjectWithId(representations);
+  }
+
+  @Benchmark
+  @Threads(2)
+  public EntitiesResponse entities2Threads() {
+    return froid.generateEntityObjectWithId(representations);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public EntitiesResponse entities4Threads() {
+    return froid.generateEntityObjectWithId(representations);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public EntitiesResponse entitiesAllCores() {
+    return froid.generateEntityObjectWithId(representations);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Object nodes1Thread() {
+    return froid.handleFroidRequest(request);
+  }
+
+  @Benchmark
+  @Threads(2)
+  public Object nodes2Threads() {
+    return froid.handleFroidRequest(request);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Object nodes4Threads() {
+    return froid.handleFroidRequest(request);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Object nodesAllCores() {
+    return froid.handleFroidRequest(request);
+  }
+}
@@ -0,0 +1,221 @@
+package com.wayfair.javafroid.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.wayfair.javafroid.Froid;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A minimal Froid subgraph server on the JDK's built-in HTTP server, with no other dependencies than java-froid.
+ *
+ * <p>POST /graphql bodies are read and written by Froid's streaming handler straight from the exchange streams,
+ * so a request never becomes a String or a model object. The 200 status is sent before the body is read, so every
+ * failure, of the whole request or of single entries, is reported in the errors array of the JSON response, as
+ * GraphQL over HTTP expects. Connections are kept alive by the JDK server. GET /health answers 503 until the
+ * Froid's warm-up is done, see {@link Froid#getWarmUp()}, 200 after, and stays at 503 when warm-up failed. Requests
+ * are handled on a fixed pool of platform threads unless an executor is set, so the per-thread buffers and ciphers
+ * of Froid's codecs are reused across requests.
+ */
+public class FroidServer {
+
+  private static final String GRAPHQL_PATH = "/graphql";
+  private static final String HEALTH_PATH = "/health";
+  private static final String POST = "POST";
+  private static final String GET = "GET";
+  private static final String CONTENT_TYPE = "Content-Type";
+  private static final String ALLOW = "Allow";
+  private static final String APPLICATION_JSON = "application/json";
+  private static final byte[] HEALTHY = "{\"status\":\"UP\"}".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] WARMING_UP = "{\"status\":\"WARMING_UP\"}".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] DOWN = "{\"status\":\"DOWN\"}".getBytes(StandardCharsets.UTF_8);
+  private static final int DEFAULT_PORT = 4001;
+  private static final int CHUNKED = 0;
+  private static final int NO_BODY = -1;
+
+  private final HttpServer server;
+  private final ExecutorService ownedExecutor;
+
+  private FroidServer(HttpServer server, ExecutorService ownedExecutor) {
+    this.server = server;
+    this.ownedExecutor = ownedExecutor;
+  }
+
+  /**
+   * Serve a Froid with default settings, for subgraphs that need none of the codec or key options.
+   *
+   * @param args The port, or the PORT environment variable, 4001 by default
+   * @throws IOException When the port can't be bound
+   */
+  public static void main(String[] args) throws IOException {
+    String port = args.length > 0 ? args[0] : System.getenv("PORT");
+    FroidServer server = builder()
+        .setFroid(Froid.builder().build())
+        .setPort(port != null ? Integer.parseInt(port) : DEFAULT_PORT)
+        .start();
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(1)));
+  }
+
+  /**
+   * @return The port the server listens on, the bound port when it was started on port 0
+   */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Stop accepting connections and wait for the exchanges in flight to finish.
+   *
+   * @param delaySeconds The maximum time to wait for exchanges in flight
+   */
+  public void stop(int delaySeconds) {
+    server.stop(delaySeconds);
+    if (ownedExecutor != null) {
+      ownedExecutor.shutdown();
+    }
+  }
+
+  private static void handleGraphql(Froid froid, HttpExchange exchange) throws IOException {
+    try {
+      if (!POST.equals(exchange.getRequestMethod())) {
+        exchange.getResponseHeaders().set(ALLOW, POST);
+        exchange.sendResponseHeaders(405, NO_BODY);
+        return;
+      }
+      exchange.getResponseHeaders().set(CONTENT_TYPE, APPLICATION_JSON);
+      // the response streams as it is written, errors go into its errors array instead of the status
+      exchange.sendResponseHeaders(200, CHUNKED);
+      try (OutputStream out = exchange.getResponseBody()) {
+        froid.handleFroidRequest(exchange.getRequestBody(), out);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static void handleHealth(Froid froid, HttpExchange exchange) throws IOException {
+    try {
+      if (!GET.equals(exchange.getRequestMethod())) {
+        exchange.getResponseHeaders().set(ALLOW, GET);
+        exchange.sendResponseHeaders(405, NO_BODY);
+        return;
+      }
+      // a failed warm-up, e.g. on an invalid codec key, means the Froid is misconfigured
+      CompletableFuture<Void> warmUp = froid.getWarmUp();
+      boolean ready = warmUp.isDone() && !warmUp.isCompletedExceptionally();
+      byte[] status = ready ? HEALTHY : warmUp.isDone() ? DOWN : WARMING_UP;
+      exchange.getResponseHeaders().set(CONTENT_TYPE, APPLICATION_JSON);
+      exchange.sendResponseHeaders(ready ? 200 : 503, status.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(status);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+
+    private Froid froid;
+
+    private String host;
+
+    private int port = DEFAULT_PORT;
+
+    private int backlog;
+
+    private Executor executor;
+
+    public Builder setFroid(Froid froid) {
+      this.froid = froid;
+      return this;
+    }
+
+    /**
+     * @param host The address to bind, all addresses by default
+     * @return The builder
+     */
+    public Builder setHost(String host) {
+      this.host = host;
+      return this;
+    }
+
+    /**
+     * @param port The port to listen on, 0 for any free port
+     * @return The builder
+     */
+    public Builder setPort(int port) {
+      this.port = port;
+      return this;
+    }
+
+    /**
+     * @param backlog The maximum number of queued incoming connections, 0 for the system default
+     * @return The builder
+     */
+    public Builder setBacklog(int backlog) {
+      this.backlog = backlog;
+      return this;
+    }
+
+    /**
+     * The executor exchanges are handled on. The server does not shut down an executor it was given. A virtual
+     * thread per exchange, e.g. {@code Executors.newVirtualThreadPerTaskExecutor()}, is possible but starts every
+     * request without the per-thread state of the codecs.
+     *
+     * @param executor The executor
+     * @return The builder
+     */
+    public Builder setExecutor(Executor executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    /**
+     * Bind the port and start serving.
+     *
+     * @return The running server
+     * @throws IOException When the port can't be bound
+     */
+    public FroidServer start() throws IOException {
+      if (froid == null) {
+        throw new IllegalStateException("expecting a Froid to serve");
+      }
+
+      InetSocketAddress address = host == null ? new InetSocketAddress(port) : new InetSocketAddress(host, port);
+      HttpServer server = HttpServer.create(address, backlog);
+      Froid served = froid;
+      server.createContext(GRAPHQL_PATH, exchange -> handleGraphql(served, exchange));
+      server.createContext(HEALTH_PATH, exchange -> handleHealth(served, exchange));
+
+      ExecutorService ownedExecutor = null;
+      if (executor == null) {
+        ownedExecutor = defaultExecutor();
+      }
+      server.setExecutor(executor != null ? executor : ownedExecutor);
+      server.start();
+      return new FroidServer(server, ownedExecutor);
+    }
+
+    /**
+     * A pool of twice as many threads as there are processors.
+     */
+    private static ExecutorService defaultExecutor() {
+      return Executors.newFixedThreadPool(2 * Runtime.getRuntime().availableProcessors(), runnable -> {
+        Thread thread = new Thread(runnable, "froid-server");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package com.wayfair.javafroid.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wayfair.javafroid.Froid;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class FroidServerTest {
+
+  private static String DEMO_BOOK_1 = "RGVtb0Jvb2s6ZXlKaWIyOXJTV1FpT2pGOQ==";
+
+  private FroidServer server;
+
+  @BeforeEach
+  void start() throws IOException {
+    server = FroidServer.builder()
+        .setFroid(Froid.builder().build())
+        .setHost("127.0.0.1")
+        .setPort(0)
+        .start();
+  }
+
+  @AfterEach
+  void stop() {
+    server.stop(0);
+  }
+
+  @Test
+  void testGraphql() throws IOException {
+    String entities = "{\"query\":\"query ($representations:[_Any!]!) {"
+        + "_entities(representations:$representations){...on DemoBook{id}}}\","
+        + "\"variables\":{\"representations\":[{\"__typename\":\"DemoBook\",\"bookId\":1}]}}";
+    String node = "{\"query\":\"query {a:node(id:\\\"" + DEMO_BOOK_1 + "\\\"){__typename}}\"}";
+
+    // consecutive requests share the kept alive connection
+    for (int i = 0; i < 2; i++) {
+      HttpURLConnection connection = post(entities);
+      assertEquals(200, connection.getResponseCode());
+      assertEquals("application/json", connection.getContentType());
+      assertEquals(new ObjectMapper().readTree(
+              "{\"data\":{\"_entities\":[{\"__typename\":\"DemoBook\",\"id\":\"" + DEMO_BOOK_1 + "\"}]}}"),
+          new ObjectMapper().readTree(read(connection.getInputStream())));
+
+      connection = post(node);
+      assertEquals(200, connection.getResponseCode());
+      assertEquals(new ObjectMapper().readTree(
+              "{\"data\":{\"a\":{\"bookId\":1,\"__typename\":\"DemoBook\",\"id\":\"" + DEMO_BOOK_1 + "\"}}}"),
+          new ObjectMapper().readTree(read(connection.getInputStream())));
+    }
+
+    HttpURLConnection invalid = post("not json");
+    assertEquals(200, invalid.getResponseCode());
+    assertEquals(1, new ObjectMapper().readTree(read(invalid.getInputStream())).get("errors").size());
+
+    HttpURLConnection get = (HttpURLConnection) url("/graphql").openConnection();
+    assertEquals(405, get.getResponseCode());
+    assertEquals("POST", get.getHeaderField("Allow"));
+  }
+
+  @Test
+  void testHealth() throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) url("/health").openConnection();
+    assertEquals(200, connection.getResponseCode());
+    assertEquals("{\"status\":\"UP\"}", read(connection.getInputStream()));
+  }
+
+  @Test
+  void testHealthWaitsForWarmUp() throws Exception {
+    CountDownLatch warm = new CountDownLatch(1);
+    Froid froid = Froid.builder()
+        .setDocumentProvider((query, parseFunction) -> {
+          try {
+            warm.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return parseFunction.apply(query);
+        })
+        .setWarmUpQueries(Collections.singletonList("query {a:node(id:\"" + DEMO_BOOK_1 + "\"){__typename}}"))
+        .build();
+    FroidServer warmingUp = FroidServer.builder().setFroid(froid).setHost("127.0.0.1").setPort(0).start();
+    try {
+      URL health = new URL("http://127.0.0.1:" + warmingUp.getPort() + "/health");
+      HttpURLConnection connection = (HttpURLConnection) health.openConnection();
+      assertEquals(503, connection.getResponseCode());
+      assertEquals("{\"status\":\"WARMING_UP\"}", read(connection.getErrorStream()));
+
+      warm.countDown();
+      froid.getWarmUp().get(10, TimeUnit.SECONDS);
+      connection = (HttpURLConnection) health.openConnection();
+      assertEquals(200, connection.getResponseCode());
+    } finally {
+      warmingUp.stop(0);
+    }
+  }
+
+  @Test
+  void testHealthAfterFailedWarmUp() throws Exception {
+    Froid froid = Froid.builder().setWarmUpRequests(Collections.singletonList(null)).build();
+    FroidServer failed = FroidServer.builder().setFroid(froid).setHost("127.0.0.1").setPort(0).start();
+    try {
+      assertThrows(ExecutionException.class, () -> froid.getWarmUp().get(10, TimeUnit.SECONDS));
+      URL health = new URL("http://127.0.0.1:" + failed.getPort() + "/health");
+      HttpURLConnection connection = (HttpURLConnection) health.openConnection();
+      assertEquals(503, connection.getResponseCode());
+      assertEquals("{\"status\":\"DOWN\"}", read(connection.getErrorStream()));
+    } finally {
+      failed.stop(0);
+    }
+  }
+
+  private HttpURLConnection post(String body) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) url("/graphql").openConnection();
+    connection.setRequestMethod("POST");
+    connection.setRequestProperty("Content-Type", "application/json");
+    connection.setDoOutput(true);
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(body.getBytes(StandardCharsets.UTF_8));
+    }
+    return connection;
+  }
+
+  private URL url(String path) throws IOException {
+    return new URL("http://127.0.0.1:" + server.getPort() + path);
+  }
+
+  private static String read(InputStream in) throws IOException {
+    try (InputStream stream = in) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = stream.read(buffer)) != -1) {
+        bytes.write(buffer, 0, read);
+      }
+      return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -0,0 +1,34 @@
+package com.wayfair.javafroid;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A Codec that completes asynchronously, e.g. one that calls a key management service. Requests handled with
+ * {@link Froid#handleFroidRequestAsync(com.wayfair.javafroid.model.Request)} compose these futures instead of
+ * waiting for them, and the rest of the id or entity object is produced on the thread that completes them.
+ * The synchronous handlers wait for the futures through the byte[] methods.
+ */
+public interface AsyncCodec extends Codec {
+
+  /**
+   * @param decoded The key bytes, owned by the codec
+   * @return The encoded bytes
+   */
+  CompletableFuture<byte[]> encodeAsync(byte[] decoded);
+
+  /**
+   * @param encoded The encoded bytes, owned by the codec
+   * @return The key bytes
+   */
+  CompletableFuture<byte[]> decodeAsync(byte[] encoded);
+
+  @Override
+  default byte[] encode(byte[] decoded) {
+    return encodeAsync(decoded).join();
+  }
+
+  @Override
+  default byte[] decode(byte[] encoded) {
+    return decodeAsync(encoded).join();
+  }
+}
@@ -0,0 +1,20 @@
+package com.wayfair.javafroid;
+
+import graphql.language.Document;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * A DocumentProvider that completes asynchronously, e.g. one backed by a remote persisted query store.
+ * Requests handled with {@link Froid#handleFroidRequestAsync(com.wayfair.javafroid.model.Request)} compose
+ * the future; the synchronous handlers wait for it.
+ */
+public interface AsyncDocumentProvider extends DocumentProvider {
+
+  CompletableFuture<Document> applyAsync(String query, Function<String, Document> parseFunction);
+
+  @Override
+  default Document apply(String query, Function<String, Document> parseFunction) {
+    return applyAsync(query, parseFunction).join();
+  }
+}
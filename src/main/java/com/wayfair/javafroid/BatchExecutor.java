@@ -0,0 +1,157 @@
+package com.wayfair.javafroid;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a task for every index of a batch, splitting large batches across a ForkJoinPool.
+ * Tasks write their result by index, so the output order never depends on scheduling.
+ *
+ * <p>With a fixed threshold every batch of at least that many items is split. Without one the
+ * threshold adapts: the cost per item is measured on the batches that run on the calling thread,
+ * and by the chunks of every 16th split batch, and a batch is only split when the estimated work is
+ * worth the handoff to the pool. Sampling split batches too keeps the estimate current once batches
+ * stop running on the calling thread, e.g. after the JIT made an early, expensive estimate stale.
+ */
+final class BatchExecutor {
+
+  static final int ADAPTIVE = 0;
+
+  private static final long PARALLEL_MIN_NANOS = 200_000;
+  private static final long CHUNK_NANOS = 50_000;
+  private static final int MIN_CHUNK = 8;
+  private static final int SAMPLE_INTERVAL = 16;
+
+  private final ForkJoinPool pool;
+  private final int threshold;
+  private volatile long nanosPerItem;
+  // racy, it only paces the sampling of split batches
+  private int splitBatches;
+
+  @FunctionalInterface
+  interface Task {
+
+    void run(int index) throws Exception;
+  }
+
+  /**
+   * @param pool      The pool to split batches across, null to always run on the calling thread
+   * @param threshold The minimum batch size to split, or ADAPTIVE
+   */
+  BatchExecutor(ForkJoinPool pool, int threshold) {
+    if (threshold < 0) {
+      throw new IllegalArgumentException(String.format("expecting a non-negative threshold, got %d", threshold));
+    }
+    this.pool = pool;
+    this.threshold = threshold;
+  }
+
+  void run(int size, Task task) {
+    if (splits(size)) {
+      split(size, task);
+    } else {
+      runSequential(size, task);
+    }
+  }
+
+  /**
+   * Run a task for every index, then hand every index to a consumer, in order. When the batch runs on the
+   * calling thread each index is consumed right after its task, so results can be written out as they are
+   * produced instead of being held for the whole batch. A split batch is consumed once every task is done.
+   *
+   * @param size     The batch size
+   * @param task     Produces the result of an index
+   * @param consumer Consumes the result of an index, always on the calling thread
+   */
+  void run(int size, Task task, Task consumer) {
+    if (splits(size)) {
+      split(size, task);
+      for (int i = 0; i < size; i++) {
+        runTask(consumer, i);
+      }
+    } else {
+      runSequential(size, i -> {
+        task.run(i);
+        consumer.run(i);
+      });
+    }
+  }
+
+  private boolean splits(int size) {
+    long cost = nanosPerItem;
+    return pool != null && size >= 2 && (threshold == ADAPTIVE ? cost != 0 && size * cost >= PARALLEL_MIN_NANOS
+        : size >= threshold);
+  }
+
+  private void split(int size, Task task) {
+    int chunk = threshold == ADAPTIVE
+        ? (int) Math.max(MIN_CHUNK, CHUNK_NANOS / nanosPerItem)
+        : Math.max(MIN_CHUNK, size / (pool.getParallelism() * 4));
+    boolean sample = threshold == ADAPTIVE && ++splitBatches % SAMPLE_INTERVAL == 0;
+    pool.invoke(new Split(task, 0, size, chunk, sample ? this : null));
+  }
+
+  private void runSequential(int size, Task task) {
+    boolean measure = threshold == ADAPTIVE && pool != null && size > 0;
+    long start = measure ? System.nanoTime() : 0;
+    for (int i = 0; i < size; i++) {
+      runTask(task, i);
+    }
+    if (measure) {
+      sample(System.nanoTime() - start, size);
+    }
+  }
+
+  private void sample(long nanos, int items) {
+    long measured = Math.max(1, nanos / items);
+    long previous = nanosPerItem;
+    // a racy moving average is fine, the estimate only needs to be in the right ballpark
+    nanosPerItem = previous == 0 ? measured : (previous * 7 + measured) / 8;
+  }
+
+  private static void runTask(Task task, int index) {
+    try {
+      task.run(index);
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException(e); //NOSONAR
+    }
+  }
+
+  private static final class Split extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient Task task;
+    private final int from;
+    private final int to;
+    private final int chunk;
+    // measures the chunks when set
+    private final transient BatchExecutor sampler;
+
+    Split(Task task, int from, int to, int chunk, BatchExecutor sampler) {
+      this.task = task;
+      this.from = from;
+      this.to = to;
+      this.chunk = chunk;
+      this.sampler = sampler;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= chunk) {
+        long start = sampler != null ? System.nanoTime() : 0;
+        for (int i = from; i < to; i++) {
+          runTask(task, i);
+        }
+        if (sampler != null) {
+          sampler.sample(System.nanoTime() - start, to - from);
+        }
+      } else {
+        int middle = (from + to) >>> 1;
+        invokeAll(new Split(task, from, middle, chunk, sampler), new Split(task, middle, to, chunk, sampler));
+      }
+    }
+  }
+}
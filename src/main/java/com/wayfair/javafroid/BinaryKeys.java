@@ -0,0 +1,374 @@
+package com.wayfair.javafroid;
+
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.DeserializationConfig;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The binary key format, {@link KeyFormat#BINARY}. The first byte is the format version, which can't be the
+ * '{' that starts JSON keys, so both decode side by side:
+ *
+ * <ul>
+ *   <li>1, named: a varint field count, then each field as a string name and a tagged value</li>
+ *   <li>2, positional: a 4 byte fingerprint of the declared key fields of the type, then a tagged value
+ *   per field, in declared order</li>
+ * </ul>
+ *
+ * <p>Values are a tag byte followed by: nothing for null and booleans, a zig-zag varint for integers, the
+ * two's complement bytes of integers beyond a long, 8 bytes for doubles, varint length prefixed UTF-8 for
+ * strings, and a varint count followed by the entries for objects and arrays. Decoding yields the same
+ * value types the ObjectMapper would read from the JSON form of the keys. Keys with values that have no
+ * exact binary form, like floats, decimals or other objects, are written as JSON instead.
+ */
+final class BinaryKeys {
+
+  static final byte NAMED = 1;
+  static final byte POSITIONAL = 2;
+
+  private static final int NULL = 0;
+  private static final int FALSE = 1;
+  private static final int TRUE = 2;
+  private static final int INTEGER = 3;
+  private static final int BIG_INTEGER = 4;
+  private static final int DOUBLE = 5;
+  private static final int STRING = 6;
+  private static final int OBJECT = 7;
+  private static final int ARRAY = 8;
+  private static final int MAX_DEPTH = 100;
+  private static final String TYPE_NAME = "__typename";
+  private static final BigInteger LONG_MIN = BigInteger.valueOf(Long.MIN_VALUE);
+  private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+  // thrown from deep inside the keys and caught by read, so it is allocated once and has no stack trace
+  private static final IllegalArgumentException INVALID_KEYS = new IllegalArgumentException("expecting binary keys");
+
+  static {
+    INVALID_KEYS.setStackTrace(new StackTraceElement[0]);
+  }
+
+  private final KeyWriters keyWriters;
+  private final boolean bigIntegers;
+  private final boolean longs;
+  private final boolean bigDecimals;
+  private final boolean javaArrays;
+
+  BinaryKeys(ObjectMapper mapper, KeyWriters keyWriters) {
+    DeserializationConfig config = mapper.getDeserializationConfig();
+    this.keyWriters = keyWriters;
+    this.bigIntegers = config.isEnabled(DeserializationFeature.USE_BIG_INTEGER_FOR_INTS);
+    this.longs = config.isEnabled(DeserializationFeature.USE_LONG_FOR_INTS);
+    this.bigDecimals = config.isEnabled(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS);
+    this.javaArrays = config.isEnabled(DeserializationFeature.USE_JAVA_ARRAY_FOR_JSON_ARRAY);
+  }
+
+  static boolean isBinary(byte version) {
+    return version == NAMED || version == POSITIONAL;
+  }
+
+  /**
+   * Write keys in the named format.
+   *
+   * @param keys The key fields, without __typename, in the order they are written
+   * @param out  The buffer, written from its start
+   * @return false when a value has no binary form
+   */
+  static boolean write(Map<?, Object> keys, ByteArrayBuilder out) {
+    out.append(NAMED);
+    return writeObject(keys, out, 0);
+  }
+
+  /**
+   * Write the fields of a KeyWriter, positionally when the writer is declared on the builder and therefore
+   * known when decoding, named otherwise.
+   *
+   * @param writer         The writer matching the representation
+   * @param positional     true when the writer is declared
+   * @param representation The representation object
+   * @param out            The buffer, written from its start
+   * @return false when a value has no binary form
+   */
+  static boolean write(KeyWriter writer, boolean positional, Map<String, Object> representation,
+      ByteArrayBuilder out) {
+    out.append(positional ? POSITIONAL : NAMED);
+    if (positional) {
+      int fingerprint = writer.fingerprint();
+      for (int shift = 24; shift >= 0; shift -= 8) {
+        out.append(fingerprint >>> shift);
+      }
+    } else {
+      writeVarint(writer.size(), out);
+    }
+    for (int i = 0; i < writer.size(); i++) {
+      if (!positional) {
+        writeString(writer.field(i), out);
+      }
+      if (!writeValue(representation.get(writer.field(i)), out, 1)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean writeObject(Map<?, Object> object, ByteArrayBuilder out, int depth) {
+    writeVarint(object.size(), out);
+    for (Map.Entry<?, Object> entry : object.entrySet()) {
+      if (!(entry.getKey() instanceof String)) {
+        return false;
+      }
+      writeString((String) entry.getKey(), out);
+      if (!writeValue(entry.getValue(), out, depth + 1)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean writeValue(Object value, ByteArrayBuilder out, int depth) {
+    if (depth > MAX_DEPTH) {
+      return false;
+    }
+    if (value == null) {
+      out.append(NULL);
+    } else if (value instanceof Boolean) {
+      out.append((Boolean) value ? TRUE : FALSE);
+    } else if (value instanceof Integer || value instanceof Long || value instanceof Short
+        || value instanceof Byte) {
+      writeInteger(((Number) value).longValue(), out);
+    } else if (value instanceof BigInteger) {
+      BigInteger integer = (BigInteger) value;
+      if (integer.compareTo(LONG_MIN) >= 0 && integer.compareTo(LONG_MAX) <= 0) {
+        writeInteger(integer.longValue(), out);
+      } else {
+        out.append(BIG_INTEGER);
+        writeBytes(integer.toByteArray(), out);
+      }
+    } else if (value instanceof Double) {
+      double number = (Double) value;
+      if (Double.isNaN(number) || Double.isInfinite(number)) {
+        // written as strings in JSON
+        return false;
+      }
+      out.append(DOUBLE);
+      long bits = Double.doubleToLongBits(number);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        out.append((int) (bits >>> shift));
+      }
+    } else if (value instanceof String) {
+      out.append(STRING);
+      writeString((String) value, out);
+    } else if (value instanceof Map) {
+      out.append(OBJECT);
+      return writeObject((Map<?, Object>) value, out, depth);
+    } else if (value instanceof List) {
+      List<?> list = (List<?>) value;
+      out.append(ARRAY);
+      writeVarint(list.size(), out);
+      for (Object element : list) {
+        if (!writeValue(element, out, depth + 1)) {
+          return false;
+        }
+      }
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  private static void writeInteger(long value, ByteArrayBuilder out) {
+    out.append(INTEGER);
+    writeVarint((value << 1) ^ (value >> 63), out);
+  }
+
+  private static void writeString(String value, ByteArrayBuilder out) {
+    writeBytes(value.getBytes(StandardCharsets.UTF_8), out);
+  }
+
+  private static void writeBytes(byte[] bytes, ByteArrayBuilder out) {
+    writeVarint(bytes.length, out);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static void writeVarint(long value, ByteArrayBuilder out) {
+    while ((value & ~0x7fL) != 0) {
+      out.append((int) (value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.append((int) value);
+  }
+
+  /**
+   * Read binary keys.
+   *
+   * @param typeName The __typename of the id, to find the declared key fields of positional keys
+   * @param bytes    The keys
+   * @param offset   The offset of the keys
+   * @param length   The length of the keys
+   * @return The key fields, or null when the keys are not valid, or the declared key fields changed
+   */
+  Map<String, Object> read(String typeName, byte[] bytes, int offset, int length) {
+    Input in = new Input(bytes, offset, offset + length);
+    Map<String, Object> keys;
+    try {
+      if (in.read() == POSITIONAL) {
+        KeyWriter writer = keyWriters.declared(typeName);
+        if (writer == null || writer.fingerprint() != in.int32()) {
+          return null;
+        }
+        keys = new LinkedHashMap<>();
+        for (int i = 0; i < writer.size(); i++) {
+          keys.put(writer.field(i), readValue(in, 1));
+        }
+      } else {
+        keys = readObject(in, 0);
+      }
+    } catch (IllegalArgumentException e) {
+      if (e != INVALID_KEYS) {
+        throw e;
+      }
+      return null;
+    }
+
+    if (in.position != in.end || keys.containsKey(TYPE_NAME)) {
+      return null;
+    }
+    return keys;
+  }
+
+  private Map<String, Object> readObject(Input in, int depth) {
+    int size = in.count();
+    Map<String, Object> object = new LinkedHashMap<>();
+    for (int i = 0; i < size; i++) {
+      String name = in.string();
+      object.put(name, readValue(in, depth + 1));
+    }
+    return object;
+  }
+
+  private Object readValue(Input in, int depth) {
+    if (depth > MAX_DEPTH) {
+      throw INVALID_KEYS;
+    }
+    int tag = in.read();
+    switch (tag) {
+      case NULL:
+        return null;
+      case FALSE:
+        return Boolean.FALSE;
+      case TRUE:
+        return Boolean.TRUE;
+      case INTEGER:
+        long zigzag = in.varint();
+        return integer((zigzag >>> 1) ^ -(zigzag & 1));
+      case BIG_INTEGER:
+        byte[] magnitude = in.bytes();
+        if (magnitude.length == 0) {
+          throw INVALID_KEYS;
+        }
+        return new BigInteger(magnitude);
+      case DOUBLE:
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+          bits = bits << 8 | in.read();
+        }
+        double number = Double.longBitsToDouble(bits);
+        return bigDecimals ? new BigDecimal(Double.toString(number)) : (Object) number;
+      case STRING:
+        return in.string();
+      case OBJECT:
+        return readObject(in, depth);
+      case ARRAY:
+        int size = in.count();
+        List<Object> array = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+          array.add(readValue(in, depth + 1));
+        }
+        return javaArrays ? array.toArray() : array;
+      default:
+        throw INVALID_KEYS;
+    }
+  }
+
+  private Object integer(long value) {
+    if (bigIntegers) {
+      return BigInteger.valueOf(value);
+    }
+    if (!longs && value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+      return (int) value;
+    }
+    return value;
+  }
+
+  private static final class Input {
+
+    private final byte[] bytes;
+    private final int end;
+    private int position;
+
+    Input(byte[] bytes, int position, int end) {
+      this.bytes = bytes;
+      this.position = position;
+      this.end = end;
+    }
+
+    int read() {
+      if (position >= end) {
+        throw INVALID_KEYS;
+      }
+      return bytes[position++] & 0xff;
+    }
+
+    int int32() {
+      int value = 0;
+      for (int i = 0; i < 4; i++) {
+        value = value << 8 | read();
+      }
+      return value;
+    }
+
+    long varint() {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = read();
+        value |= (long) (b & 0x7f) << shift;
+        if (b < 0x80) {
+          return value;
+        }
+      }
+      throw INVALID_KEYS;
+    }
+
+    /**
+     * A count of entries, each taking at least one byte, so a corrupt count can't allocate more than the
+     * keys could hold.
+     */
+    int count() {
+      long count = varint();
+      if (count < 0 || count > end - position) {
+        throw INVALID_KEYS;
+      }
+      return (int) count;
+    }
+
+    byte[] bytes() {
+      int length = count();
+      byte[] value = new byte[length];
+      System.arraycopy(bytes, position, value, 0, length);
+      position += length;
+      return value;
+    }
+
+    String string() {
+      int length = count();
+      String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+      position += length;
+      return value;
+    }
+  }
+}
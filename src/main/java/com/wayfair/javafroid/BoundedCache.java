@@ -0,0 +1,192 @@
+package com.wayfair.javafroid;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * A concurrent cache that holds at most maxSize entries, evicting by sampled LFU: every entry counts its
+ * hits, and once the cache is full a new entry replaces the least used of a few randomly sampled entries.
+ * Sampled entries that survive have their count halved, so entries that stopped being used age out.
+ * Entries sit in a ring of maxSize slots next to the map, so sampling is O(1), and a slot is taken over
+ * with a compare-and-set, so there is no lock. Frequencies are counted without synchronization and are
+ * approximate under contention. A maxSize of zero disables caching and always computes the value.
+ *
+ * @param <K> K
+ * @param <V> V
+ */
+final class BoundedCache<K, V> {
+
+  private static final int SAMPLES = 5;
+  private static final int MAX_FREQUENCY = 1 << 16;
+
+  private final ConcurrentHashMap<K, Entry<K, V>> entries;
+  private final AtomicReferenceArray<Entry<K, V>> slots;
+  private final AtomicInteger filled;
+  private final int maxSize;
+  private final LongAdder hits;
+  private final LongAdder misses;
+  private final LongAdder evictions;
+  private final boolean counted;
+
+  private static final class Entry<K, V> {
+
+    private final K key;
+    private final V value;
+    private int frequency = 1;
+
+    Entry(K key, V value) {
+      this.key = key;
+      this.value = value;
+    }
+  }
+
+  BoundedCache(int maxSize) {
+    if (maxSize < 0) {
+      throw new IllegalArgumentException(String.format("expecting a non-negative cache size, got %d", maxSize));
+    }
+    this.entries = new ConcurrentHashMap<>();
+    this.slots = new AtomicReferenceArray<>(maxSize);
+    this.filled = new AtomicInteger();
+    this.maxSize = maxSize;
+    this.hits = new LongAdder();
+    this.misses = new LongAdder();
+    this.evictions = new LongAdder();
+    this.counted = true;
+  }
+
+  private BoundedCache(BoundedCache<K, V> cache) {
+    this.entries = cache.entries;
+    this.slots = cache.slots;
+    this.filled = cache.filled;
+    this.maxSize = cache.maxSize;
+    this.hits = cache.hits;
+    this.misses = cache.misses;
+    this.evictions = cache.evictions;
+    this.counted = false;
+  }
+
+  /**
+   * A view of this cache that shares its entries but counts no hits or misses, for lookups that aren't
+   * traffic, like warm-up. Entries it caches or evicts are real, so evictions are still counted.
+   */
+  BoundedCache<K, V> uncounted() {
+    return new BoundedCache<>(this);
+  }
+
+  V get(K key, Function<K, V> mappingFunction) {
+    V value = getIfPresent(key);
+    if (value == null) {
+      value = mappingFunction.apply(key);
+      put(key, value);
+    }
+    return value;
+  }
+
+  /**
+   * @param key The key
+   * @return The cached value, or null
+   */
+  V getIfPresent(K key) {
+    if (maxSize == 0) {
+      // a disabled cache reports no lookups
+      return null;
+    }
+    Entry<K, V> entry = entries.get(key);
+    if (entry == null) {
+      if (counted) {
+        misses.increment();
+      }
+      return null;
+    }
+    if (entry.frequency < MAX_FREQUENCY) {
+      entry.frequency++;
+    }
+    if (counted) {
+      hits.increment();
+    }
+    return entry.value;
+  }
+
+  /**
+   * Cache a value, unless the key is already cached.
+   *
+   * @param key   The key, which must not change while it is cached
+   * @param value The value
+   * @return The cached value, which is the one already cached if there was one
+   */
+  V put(K key, V value) {
+    if (maxSize == 0) {
+      return value;
+    }
+    Entry<K, V> entry = new Entry<>(key, value);
+    Entry<K, V> existing = entries.putIfAbsent(key, entry);
+    if (existing != null) {
+      return existing.value;
+    }
+    place(entry);
+    return value;
+  }
+
+  boolean isEnabled() {
+    return maxSize > 0;
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * Visit the cached entries, without counting as hits. Entries cached or evicted meanwhile may be missed or seen.
+   */
+  void forEach(BiConsumer<? super K, ? super V> action) {
+    entries.forEach((key, entry) -> action.accept(key, entry.value));
+  }
+
+  CacheStats stats() {
+    return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), entries.size(), maxSize);
+  }
+
+  private void place(Entry<K, V> entry) {
+    if (filled.get() < maxSize) {
+      int slot = filled.getAndIncrement();
+      if (slot < maxSize) {
+        slots.set(slot, entry);
+        return;
+      }
+    }
+
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    while (true) {
+      int victimSlot = -1;
+      Entry<K, V> victim = null;
+      for (int i = 0; i < SAMPLES; i++) {
+        int slot = random.nextInt(maxSize);
+        Entry<K, V> candidate = slots.get(slot);
+        if (candidate == null || candidate == victim) {
+          // a slot still being filled, or sampled twice
+          continue;
+        }
+        if (victim == null || candidate.frequency < victim.frequency) {
+          if (victim != null) {
+            victim.frequency = Math.max(1, victim.frequency >>> 1);
+          }
+          victim = candidate;
+          victimSlot = slot;
+        } else {
+          candidate.frequency = Math.max(1, candidate.frequency >>> 1);
+        }
+      }
+
+      if (victim != null && slots.compareAndSet(victimSlot, victim, entry)) {
+        entries.remove(victim.key, victim);
+        evictions.increment();
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package com.wayfair.javafroid;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A Codec that works on ByteBuffers, so it can transform in place or write into a buffer owned by Froid
+ * instead of allocating a new array per id. Froid uses these methods whenever the configured Codec implements
+ * this interface; the byte[] methods are derived from them.
+ */
+public interface BufferCodec extends Codec {
+
+  /**
+   * @param decodedLength The number of bytes to encode
+   * @return The largest number of bytes encoding them can produce
+   */
+  int maxEncodedLength(int decodedLength);
+
+  /**
+   * @param encodedLength The number of bytes to decode
+   * @return The largest number of bytes decoding them can produce
+   */
+  int maxDecodedLength(int encodedLength);
+
+  /**
+   * Encode the remaining bytes of src into dst, starting at the position of dst. Both positions are advanced.
+   *
+   * @param src The bytes to encode
+   * @param dst The output, with at least maxEncodedLength(src.remaining()) bytes remaining
+   */
+  void encode(ByteBuffer src, ByteBuffer dst);
+
+  /**
+   * Decode the remaining bytes of src into dst, starting at the position of dst. Both positions are advanced.
+   *
+   * @param src The bytes to decode
+   * @param dst The output, with at least maxDecodedLength(src.remaining()) bytes remaining
+   * @return false when src is not a valid encoding, in which case the positions are unspecified. Forged and
+   *     junk ids are cheap to send, so they are rejected with a result rather than an exception.
+   */
+  boolean decode(ByteBuffer src, ByteBuffer dst);
+
+  /**
+   * Encode the keys of an id of the given type, see {@link #encode(ByteBuffer, ByteBuffer)}. Froid always calls
+   * this method. Codecs that authenticate ids should bind the type name, so an id issued for one type can't be
+   * relabelled as another; by default the type is ignored.
+   *
+   * @param typeName The __typename of the id
+   * @param src      The bytes to encode
+   * @param dst      The output, with at least maxEncodedLength(src.remaining()) bytes remaining
+   */
+  default void encode(String typeName, ByteBuffer src, ByteBuffer dst) {
+    encode(src, dst);
+  }
+
+  /**
+   * Decode the keys of an id of the given type, see {@link #decode(ByteBuffer, ByteBuffer)}.
+   *
+   * @param typeName The __typename of the id
+   * @param src      The bytes to decode
+   * @param dst      The output, with at least maxDecodedLength(src.remaining()) bytes remaining
+   * @return false when src is not a valid encoding for the type
+   */
+  default boolean decode(String typeName, ByteBuffer src, ByteBuffer dst) {
+    return decode(src, dst);
+  }
+
+  @Override
+  default byte[] encode(byte[] decoded) {
+    ByteBuffer dst = ByteBuffer.allocate(maxEncodedLength(decoded.length));
+    encode(ByteBuffer.wrap(decoded), dst);
+    return Arrays.copyOf(dst.array(), dst.position());
+  }
+
+  @Override
+  default byte[] decode(byte[] encoded) {
+    ByteBuffer dst = ByteBuffer.allocate(maxDecodedLength(encoded.length));
+    if (!decode(ByteBuffer.wrap(encoded), dst)) {
+      throw new IllegalArgumentException("expecting a valid encoding");
+    }
+    return Arrays.copyOf(dst.array(), dst.position());
+  }
+}
@@ -0,0 +1,55 @@
+package com.wayfair.javafroid;
+
+/**
+ * A snapshot of the counters of one of Froid's caches.
+ */
+public final class CacheStats {
+
+  private final long hits;
+  private final long misses;
+  private final long evictions;
+  private final int size;
+  private final int maxSize;
+
+  CacheStats(long hits, long misses, long evictions, int size, int maxSize) {
+    this.hits = hits;
+    this.misses = misses;
+    this.evictions = evictions;
+    this.size = size;
+    this.maxSize = maxSize;
+  }
+
+  public long getHits() {
+    return hits;
+  }
+
+  public long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return The share of lookups that hit, 0 when there were none
+   */
+  public double getHitRate() {
+    long lookups = hits + misses;
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  public long getEvictions() {
+    return evictions;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("CacheStats{hits=%d, misses=%d, evictions=%d, size=%d, maxSize=%d}",
+        hits, misses, evictions, size, maxSize);
+  }
+}
@@ -0,0 +1,32 @@
+package com.wayfair.javafroid;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Per thread output buffers for a BufferCodec, grown as needed and reused for every id.
+ */
+final class CodecBuffers {
+
+  private ByteBuffer encoded = ByteBuffer.allocate(256);
+  private ByteBuffer decoded = ByteBuffer.allocate(256);
+
+  ByteBuffer encoded(int capacity) {
+    encoded = clear(encoded, capacity);
+    return encoded;
+  }
+
+  ByteBuffer decoded(int capacity) {
+    decoded = clear(decoded, capacity);
+    return decoded;
+  }
+
+  private static ByteBuffer clear(ByteBuffer buffer, int capacity) {
+    if (buffer.capacity() < capacity) {
+      return ByteBuffer.allocate(Math.max(capacity, buffer.capacity() * 2));
+    }
+    // cast so the Java 8 Buffer.clear() signature is linked regardless of the JDK used to compile
+    ((Buffer) buffer).clear();
+    return buffer;
+  }
+}
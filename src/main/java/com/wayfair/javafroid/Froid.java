@@ -1,8 +1,16 @@
 package com.wayfair.javafroid;
 
-import static com.wayfair.javafroid.ThrowingFunction.unchecked;
-
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.wayfair.javafroid.FroidListener.Cache;
+import com.wayfair.javafroid.FroidListener.ErrorCategory;
+import com.wayfair.javafroid.FroidListener.Phase;
+import com.wayfair.javafroid.model.BaseResponse;
 import com.wayfair.javafroid.model.EntitiesResponse;
 import com.wayfair.javafroid.model.Entity;
 import com.wayfair.javafroid.model.EntityList;
@@ -10,19 +18,33 @@ import com.wayfair.javafroid.model.EntityObjectResponse;
 import com.wayfair.javafroid.model.Error;
 import com.wayfair.javafroid.model.Request;
 import graphql.language.Document;
-import graphql.language.Field;
 import graphql.language.Node;
-import graphql.language.StringValue;
-import graphql.language.VariableReference;
+import graphql.parser.InvalidSyntaxException;
 import graphql.parser.Parser;
 import graphql.relay.Relay.ResolvedGlobalId;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.RandomAccess;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.IntFunction;
 import java.util.stream.Collectors;
 
 public class Froid {
@@ -30,259 +52,2047 @@ public class Froid {
   private static final Base64.Encoder base64Encoder = Base64.getEncoder();
   private static final Base64.Decoder base64Decoder = Base64.getDecoder();
   private static final String TYPE_NAME = "__typename";
-  private static final String NODE = "node";
   private static final String ID = "id";
   private static final String REPRESENTATIONS = "representations";
+  private static final String QUERY = "query";
+  private static final String OPERATION_NAME = "operationName";
+  private static final String VARIABLES = "variables";
+  private static final String DATA = "data";
+  private static final String ENTITIES = "_entities";
+  private static final String ERRORS = "errors";
+  private static final String MESSAGE = "message";
+  private static final String PATH = "path";
+  // junk ids and representations are cheap to send, so rejecting them allocates no exception
+  private static final IllegalArgumentException INVALID_ID = invalidInput("expecting a valid global id");
+  private static final IllegalArgumentException INVALID_REPRESENTATION =
+      invalidInput("expecting a representation with a __typename");
+  private static final String INVALID_ID_MESSAGE = newErrorMessage(INVALID_ID);
+  private static final String INVALID_REPRESENTATION_MESSAGE = newErrorMessage(INVALID_REPRESENTATION);
+  private static final int DEFAULT_PLAN_CACHE_SIZE = 1024;
+  private static final int DEFAULT_WARM_UP_ITERATIONS = 100;
+  private static final OutputStream DISCARD = new OutputStream() {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  };
+  private static final FroidListener NO_LISTENER = new FroidListener() {
+  };
   private final Parser parser;
   private final ObjectMapper mapper;
 
   private final Codec codec;
+  private final Map<String, Codec> typeCodecs;
+  private final ThreadLocal<CodecBuffers> codecBuffers = ThreadLocal.withInitial(CodecBuffers::new);
   private final DocumentProvider documentProvider;
+  private final BoundedCache<String, NodePlan> plans;
+  private final boolean scanNodeQueries;
+  private final BatchExecutor encodeBatches;
+  private final BatchExecutor decodeBatches;
+  private final BatchExecutor operationBatches;
+  private final KeyWriters keyWriters;
+  private final ThreadLocal<KeyBuffer> keyBuffers;
+  private final boolean writeBinaryKeys;
+  private final BinaryKeys binaryKeys;
+  private final GlobalIds globalIds = new GlobalIds();
+  private final BoundedCache<Map<String, Object>, String> ids;
+  private final BoundedCache<String, Map<String, Object>> nodes;
+  private final boolean spliceNodeKeys;
+  private final boolean projectNodes;
+  private final Executor executor;
+  private final boolean asyncHooks;
+  private final FroidListener listener;
+  private final boolean instrumented;
+  private final QueryShapeRegistry queryShapes;
+  private final boolean timed;
+  private final CompletableFuture<Void> warmUp = new CompletableFuture<>();
 
   private Froid(
       Parser parser,
       ObjectMapper mapper,
       Codec codec,
-      DocumentProvider documentProvider
+      Map<String, Codec> typeCodecs,
+      DocumentProvider documentProvider,
+      int planCacheSize,
+      boolean scanNodeQueries,
+      ForkJoinPool forkJoinPool,
+      int parallelThreshold,
+      KeyWriters keyWriters,
+      KeyFormat keyFormat,
+      int idCacheSize,
+      int nodeCacheSize,
+      boolean spliceNodeKeys,
+      boolean projectNodes,
+      Executor executor,
+      FroidListener listener,
+      int queryShapeRegistrySize
   ) {
     this.parser = parser;
     this.mapper = mapper;
     this.codec = codec;
+    this.typeCodecs = new HashMap<>(typeCodecs);
     this.documentProvider = documentProvider;
+    this.plans = new BoundedCache<>(planCacheSize);
+    this.scanNodeQueries = scanNodeQueries;
+    this.encodeBatches = new BatchExecutor(forkJoinPool, parallelThreshold);
+    this.decodeBatches = new BatchExecutor(forkJoinPool, parallelThreshold);
+    this.operationBatches = new BatchExecutor(forkJoinPool, parallelThreshold);
+    this.keyWriters = keyWriters;
+    this.keyBuffers = ThreadLocal.withInitial(() -> new KeyBuffer(mapper));
+    this.writeBinaryKeys = keyFormat == KeyFormat.BINARY;
+    this.binaryKeys = new BinaryKeys(mapper, keyWriters);
+    this.ids = new BoundedCache<>(idCacheSize);
+    this.nodes = new BoundedCache<>(nodeCacheSize);
+    this.spliceNodeKeys = spliceNodeKeys;
+    this.projectNodes = projectNodes;
+    this.executor = executor;
+    this.asyncHooks = documentProvider instanceof AsyncDocumentProvider || codec instanceof AsyncCodec
+        || typeCodecs.values().stream().anyMatch(AsyncCodec.class::isInstance);
+    this.listener = listener != null ? listener : NO_LISTENER;
+    this.instrumented = listener != null;
+    this.queryShapes = new QueryShapeRegistry(queryShapeRegistrySize);
+    this.timed = instrumented || queryShapes.isEnabled();
+  }
+
+  /**
+   * A Froid for warm-up, sharing the caches, codecs and batch executors of another but reporting to neither its
+   * listener, its query shapes nor its cache stats, so warm-up requests don't show up as traffic.
+   *
+   * @param froid The Froid to warm up
+   */
+  private Froid(Froid froid) {
+    this.parser = froid.parser;
+    this.mapper = froid.mapper;
+    this.codec = froid.codec;
+    this.typeCodecs = froid.typeCodecs;
+    this.documentProvider = froid.documentProvider;
+    this.plans = froid.plans.uncounted();
+    this.scanNodeQueries = froid.scanNodeQueries;
+    this.encodeBatches = froid.encodeBatches;
+    this.decodeBatches = froid.decodeBatches;
+    this.operationBatches = froid.operationBatches;
+    this.keyWriters = froid.keyWriters;
+    this.keyBuffers = froid.keyBuffers;
+    this.writeBinaryKeys = froid.writeBinaryKeys;
+    this.binaryKeys = froid.binaryKeys;
+    this.ids = froid.ids.uncounted();
+    this.nodes = froid.nodes.uncounted();
+    this.spliceNodeKeys = froid.spliceNodeKeys;
+    this.projectNodes = froid.projectNodes;
+    this.executor = froid.executor;
+    this.asyncHooks = froid.asyncHooks;
+    this.listener = NO_LISTENER;
+    this.instrumented = false;
+    this.queryShapes = new QueryShapeRegistry(0);
+    this.timed = false;
   }
 
   /**
    * The handle entrypoint decides if this an ID or Entity Object request and
    * routes the call accordingly. If an exception is thrown its message is returned as an error.
+   * A representation or node id that can't be handled only fails its own entry, which is null in the data
+   * and has an error with its path, while the other entries are still resolved.
    *
    * @param request The GraphQL request.
    * @return The response
    */
   public Object handleFroidRequest(Request request) {
+    return handleFroidRequest(request, this::plan);
+  }
 
-    try {
-      final Document document = documentProvider.apply(request.getQuery(), query -> parser.parseDocument(query));
+  /**
+   * Handle a batch of GraphQL operations, e.g. the array body of a batching router, and return their responses
+   * in order. Each distinct node query is compiled once for the whole batch, and operations are split across
+   * the ForkJoinPool set with {@link Builder#setForkJoinPool(ForkJoinPool)} like the entities of a single
+   * request. Every operation gets its own response, a failing operation only fails its own response.
+   *
+   * @param requests The GraphQL requests.
+   * @return The responses, in the order of the requests
+   */
+  public List<BaseResponse> handleFroidRequests(List<Request> requests) {
+    List<Request> batch = randomAccess(requests);
+
+    Map<String, Integer> queryIndex = new HashMap<>();
+    List<String> queries = new ArrayList<>();
+    for (Request request : batch) {
+      if (!isEntitiesRequest(request) && !queryIndex.containsKey(request.getQuery())) {
+        queryIndex.put(request.getQuery(), queries.size());
+        queries.add(request.getQuery());
+      }
+    }
+    // a plan, or the exception compiling it, which fails every operation with that query
+    Object[] compiled = new Object[queries.size()];
+    operationBatches.run(compiled.length, i -> {
+      try {
+        compiled[i] = plan(queries.get(i));
+      } catch (RuntimeException e) {
+        compiled[i] = e;
+      }
+    });
+
+    BaseResponse[] responses = new BaseResponse[batch.size()];
+    operationBatches.run(responses.length, i -> responses[i] = handleFroidRequest(batch.get(i), query -> {
+      Object plan = compiled[queryIndex.get(query)];
+      if (plan instanceof RuntimeException) {
+        throw (RuntimeException) plan;
+      }
+      return (NodePlan) plan;
+    }));
+    return Arrays.asList(responses);
+  }
 
-      if (request.getVariables() != null && request.getVariables().containsKey(REPRESENTATIONS)) {
+  private BaseResponse handleFroidRequest(Request request, Function<String, NodePlan> planFunction) {
+    long start = requestStart();
+    QueryShapeRegistry.Call call = newCall(request);
+    BaseResponse response;
+    try {
+      // Route before parsing: the _entities path never needs the document, so only node queries pay for a parse.
+      if (isEntitiesRequest(request)) {
         List<Map<String, Object>> representations = (List<Map<String, Object>>) request.getVariables()
             .get(REPRESENTATIONS);
-        return generateEntityObjectWithId(representations);
+        if (call != null && representations != null) {
+          call.representations = representations.size();
+        }
+        response = generateEntityObjectWithId(representations);
       } else {
-
-        return document.getChildren()
-            .stream()
-            .findFirst()
-            .map(unchecked(node -> generateEntityObjectsById(
-                node,
-                request.getVariables())))
-            .orElseThrow(() -> new RuntimeException("failed to generate entity objects"));
+        NodePlan plan = planFunction.apply(request.getQuery());
+        if (call != null) {
+          call.nodes = plan.size();
+        }
+        response = generateEntityObjectsById(plan, request.getVariables());
       }
     } catch (Exception e) {
-      StringBuilder message = new StringBuilder("NODE RELAY ERROR ");
+      response = errorResponse(e);
+    }
+    completed(call, start, response.getErrors() != null);
+    return response;
+  }
+
+  /**
+   * Asynchronous counterpart of {@link #handleFroidRequest(Request)}. The request is handled on the executor
+   * set with {@link Builder#setExecutor(Executor)}, so the calling thread, e.g. an event loop, never waits for it.
+   * An {@link AsyncCodec} or {@link AsyncDocumentProvider} is composed instead of waited for, and the rest of the
+   * request completes on the thread that completes its future. The returned future always completes normally,
+   * failures are returned as an error response like the synchronous handler does.
+   *
+   * @param request The GraphQL request.
+   * @return The EntitiesResponse or EntityObjectResponse
+   */
+  public CompletableFuture<BaseResponse> handleFroidRequestAsync(Request request) {
+    if (!asyncHooks) {
+      return CompletableFuture.supplyAsync(() -> (BaseResponse) handleFroidRequest(request), executor);
+    }
+    long start = requestStart();
+    QueryShapeRegistry.Call call = newCall(request);
+    return CompletableFuture.supplyAsync(() -> routeAsync(request, call), executor)
+        .thenCompose(Function.identity())
+        .exceptionally(e -> errorResponse(unwrap(e)))
+        .thenApply(response -> {
+          completed(call, start, response.getErrors() != null);
+          return response;
+        });
+  }
 
-      message
-          .append("message: ").append(e.getMessage())
-          .append("Class: ").append(e.getClass().getName());
+  private CompletableFuture<BaseResponse> routeAsync(Request request, QueryShapeRegistry.Call call) {
+    if (isEntitiesRequest(request)) {
+      List<Map<String, Object>> representations = (List<Map<String, Object>>) request.getVariables()
+          .get(REPRESENTATIONS);
+      if (call != null && representations != null) {
+        call.representations = representations.size();
+      }
+      return generateEntityObjectWithIdAsync(representations).thenApply(BaseResponse.class::cast);
+    }
+    return planAsync(request.getQuery()).thenCompose(plan -> {
+      if (call != null) {
+        call.nodes = plan.size();
+      }
+      return generateEntityObjectsByIdAsync(plan, request.getVariables());
+    });
+  }
 
-      return EntitiesResponse.builder()
-          .setError(Error.builder().setMessage(message.toString()).build())
-          .build();
+  private static Throwable unwrap(Throwable e) {
+    while ((e instanceof CompletionException || e instanceof UncheckedIOException) && e.getCause() != null) {
+      e = e.getCause();
     }
+    return e;
   }
 
   /**
-   * Map a List of GraphQL representations to entity objects.
-   * Each Entity has two properties:  __typename, id.
-   * The id property is computed by Base64 encoding the JSON byte representation.
-   * Froid can be configured with an additional encoder applied to the JSON byte reprsentation.
+   * Same as {@link #handleFroidRequest(Request)}, but the response JSON is written to the output stream
+   * as each entity is produced instead of being returned as a model object for the caller to serialize.
+   * If an exception is thrown the data written so far is closed off and its message is appended as an error.
+   * The output stream is flushed but not closed.
    *
-   * @param representations List of representation objects
-   * @return The EntitiesResponse
+   * @param request The GraphQL request.
+   * @param out     The stream the JSON response is written to.
+   * @throws IOException Any errors writing to the output stream
    */
-  public EntitiesResponse generateEntityObjectWithId(List<Map<String, Object>> representations) {
-    List<Entity> entities = representations
-        .stream()
-        .map(unchecked(e -> {
-          String typeName = e.get(TYPE_NAME).toString();
-          Map<Object, Object> data = e.entrySet()
-              .stream()
-              .filter(it -> !it.getKey().equals(TYPE_NAME))
-              .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+  public void handleFroidRequest(Request request, OutputStream out) throws IOException {
+    long start = requestStart();
+    QueryShapeRegistry.Call call = newCall(request);
+    boolean failed = false;
+    try (JsonGenerator generator = createResponseGenerator(out)) {
+      generator.writeStartObject();
+      try {
+        if (isEntitiesRequest(request)) {
+          List<Map<String, Object>> representations = (List<Map<String, Object>>) request.getVariables()
+              .get(REPRESENTATIONS);
+          if (call != null && representations != null) {
+            call.representations = representations.size();
+          }
+          failed = writeEntityObjectWithId(representations, generator);
+        } else {
+          NodePlan plan = plan(request.getQuery());
+          if (call != null) {
+            call.nodes = plan.size();
+          }
+          failed = writeEntityObjectsById(plan, request.getVariables(), generator);
+        }
+      } catch (Exception e) {
+        failed = true;
+        writeError(failure(e), generator);
+      }
+      generator.writeEndObject();
+    }
+    completed(call, start, failed);
+  }
+
+  /**
+   * Same as {@link #handleFroidRequest(Request, OutputStream)}, but reads the raw GraphQL request body.
+   * The body is read with Jackson's streaming parser and _entities representations are turned into IDs
+   * as they are read, without materializing a Request or the variables Map.
+   *
+   * @param body The JSON request body.
+   * @param out  The stream the JSON response is written to.
+   * @throws IOException Any errors reading the body or writing to the output stream
+   */
+  public void handleFroidRequest(InputStream body, OutputStream out) throws IOException {
+    try (JsonParser parser = mapper.getFactory().createParser(body)) {
+      handleFroidRequest(parser, out);
+    }
+  }
+
+  /**
+   * See {@link #handleFroidRequest(InputStream, OutputStream)}.
+   *
+   * @param body The JSON request body.
+   * @param out  The stream the JSON response is written to.
+   * @throws IOException Any errors writing to the output stream
+   */
+  public void handleFroidRequest(byte[] body, OutputStream out) throws IOException {
+    try (JsonParser parser = mapper.getFactory().createParser(body)) {
+      handleFroidRequest(parser, out);
+    }
+  }
 
-          byte[] encoded = codec.encode(mapper.writeValueAsBytes(data));
+  /**
+   * See {@link #handleFroidRequest(InputStream, OutputStream)}. The position of the buffer is left unchanged.
+   *
+   * @param body The JSON request body.
+   * @param out  The stream the JSON response is written to.
+   * @throws IOException Any errors writing to the output stream
+   */
+  public void handleFroidRequest(ByteBuffer body, OutputStream out) throws IOException {
+    if (body.hasArray()) {
+      handleFroidRequest(body.array(), body.arrayOffset() + body.position(), body.remaining(), out);
+    } else {
+      handleFroidRequest(new ByteBufferBackedInputStream(body.duplicate()), out);
+    }
+  }
 
-          return Entity.builder()
-              .setTypeName(typeName)
-              .setId(toGlobalId(typeName, base64Encoder.encodeToString(encoded)))
-              .build();
-        })).collect(Collectors.toList());
+  private void handleFroidRequest(byte[] body, int offset, int length, OutputStream out) throws IOException {
+    try (JsonParser parser = mapper.getFactory().createParser(body, offset, length)) {
+      handleFroidRequest(parser, out);
+    }
+  }
 
-    return EntitiesResponse
-        .builder()
-        .setData(EntityList
-            .builder()
-            .setEntities(entities)
-            .build())
+  private void handleFroidRequest(JsonParser body, OutputStream out) throws IOException {
+    long start = requestStart();
+    QueryShapeRegistry.Call call = queryShapes.isEnabled() ? new QueryShapeRegistry.Call() : null;
+    boolean failed = false;
+    try (JsonGenerator generator = createResponseGenerator(out)) {
+      generator.writeStartObject();
+      try {
+        failed = readRequest(body, generator, call);
+      } catch (Exception e) {
+        failed = true;
+        writeError(failure(e), generator);
+      }
+      generator.writeEndObject();
+    }
+    completed(call, start, failed);
+  }
+
+  /**
+   * Walk the request body. Representations are handled as soon as they are reached, since routing does not
+   * depend on the query. Any other variables are kept for the node path, which needs the query as well.
+   *
+   * @param body      The parser over the request body
+   * @param generator The generator positioned inside the response object
+   * @param call      Collects the query shape, or null
+   * @return true when an entry failed
+   * @throws IOException Any JSON processing errors
+   */
+  private boolean readRequest(JsonParser body, JsonGenerator generator, QueryShapeRegistry.Call call)
+      throws IOException {
+    if (body.nextToken() != JsonToken.START_OBJECT) {
+      throw new IllegalArgumentException("expecting a JSON object request body");
+    }
+
+    String query = null;
+    Map<String, Object> variables = null;
+    String field;
+    while ((field = body.nextFieldName()) != null) {
+      JsonToken token = body.nextToken();
+      if (field.equals(QUERY) && token != JsonToken.VALUE_NULL) {
+        query = body.getValueAsString();
+        if (call != null) {
+          call.query = query;
+        }
+      } else if (field.equals(OPERATION_NAME) && call != null && token == JsonToken.VALUE_STRING) {
+        call.operationName = body.getText();
+      } else if (field.equals(VARIABLES) && token == JsonToken.START_OBJECT) {
+        variables = new HashMap<>();
+        String name;
+        while ((name = body.nextFieldName()) != null) {
+          body.nextToken();
+          if (name.equals(REPRESENTATIONS)) {
+            return writeEntityObjectWithId(body, generator, call);
+          }
+          variables.put(name, mapper.readValue(body, Object.class));
+        }
+      } else {
+        body.skipChildren();
+      }
+    }
+
+    NodePlan plan = plan(query);
+    if (call != null) {
+      call.nodes = plan.size();
+    }
+    return writeEntityObjectsById(plan, variables, generator);
+  }
+
+  private JsonGenerator createResponseGenerator(OutputStream out) throws IOException {
+    JsonGenerator generator = mapper.getFactory().createGenerator(out, JsonEncoding.UTF8);
+    generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    return generator;
+  }
+
+  private EntitiesResponse errorResponse(Throwable e) {
+    return EntitiesResponse.builder()
+        .setError(Error.builder().setMessage(failure(e)).build())
         .build();
   }
 
   /**
-   * Map an ID to an Entity object. Search the parsed GraphQL document for
-   * node fields with an id argument.
+   * Report a failed request to the listener.
    *
-   * @param root      The root node of the parsed GraphQL query.
-   * @param variables The GraphQL variables passed as part of the request.
-   * @return The EntityObjectResponse
-   * @throws IOException Any JSON parsing errors
+   * @return The error message
    */
-  public EntityObjectResponse generateEntityObjectsById(Node root, Map<String, Object> variables) throws IOException {
-    HashMap<String, Object> mapped = new HashMap<>();
-    visitFields(root, variables, mapped);
-    return EntityObjectResponse.builder().setData(mapped).build();
+  private String failure(Throwable e) {
+    listener.onError(errorCategory(e));
+    return errorMessage(e);
   }
 
   /**
-   * The ID value to decode either resides in Graphql variables or passed directly to the node() field.
+   * Report a failed entry of a response to the listener.
    *
-   * @param node      The parsed node field.
-   * @param variables The GraphQL variables passed as part of the request.
-   * @return An optional string vlaue
+   * @param e    The failure
+   * @param path The path of the entry in the response
+   * @return The error
    */
-  private Optional<String> findIdValue(Field node, Map<String, Object> variables) {
-    return node.getArguments()
-        .stream()
-        .filter(it -> it.getName().equals(ID))
-        .findFirst()
-        .map(idArg -> {
-          if (idArg.getValue() instanceof VariableReference) {
-            String variableName = ((VariableReference) idArg.getValue()).getName();
-            return variables.get(variableName).toString();
-          } else if (idArg.getValue() instanceof StringValue) {
-            return ((StringValue) idArg.getValue()).getValue();
-          } else {
-            return null;
-          }
-        });
+  private Error entryError(Throwable e, List<Object> path) {
+    return Error.builder().setMessage(failure(e)).setPath(path).build();
   }
 
   /**
-   * Visit each node in the document as there may be multiple root node queries.
+   * Replace the failed entries of a response with null, and turn each failure into an error with the path of
+   * its entry.
    *
-   * @param node      The current node in the tree
-   * @param variables The GraphQL variables passed in the request
-   * @param out       Collects mapped Entity objects
-   * @throws IOException Any JSON parsing errors
+   * @param results The result of each entry, or the reason it failed
+   * @param path    The path of an entry
+   * @return The errors, or null when every entry succeeded
    */
-  private void visitFields(Node node, Map<String, Object> variables, Map<String, Object> out) throws IOException {
-
-    if (node instanceof Field) {
-      Field field = (Field) node;
-      // if this is a node field, and it has an id argument take it.
-
-      if (field.getName().equals(NODE)) {
-        Optional<String> idValue = findIdValue(field, variables);
-
-        if (idValue.isPresent()) {
-          String nodeName = field.getName();
-          String nodeAlias = field.getAlias();
-          String responseFieldName = (nodeAlias != null && !nodeAlias.isEmpty()) ? nodeAlias : nodeName;
-          ResolvedGlobalId globalId = fromGlobalId(idValue.get());
-          byte[] base64Decoded = base64Decoder.decode(globalId.getId());
-          byte[] froidDecoded = codec.decode(base64Decoded);
-          Map data = mapper.readValue(froidDecoded, Map.class);
-          data.put(TYPE_NAME, globalId.getType());
-          data.put(ID, idValue.get());
-          out.put(responseFieldName, data);
+  private List<Error> entryErrors(Object[] results, IntFunction<List<Object>> path) {
+    List<Error> errors = null;
+    for (int i = 0; i < results.length; i++) {
+      if (results[i] instanceof Throwable) {
+        if (errors == null) {
+          errors = new ArrayList<>();
         }
-      }
-    } else {
-      for (Node child : (List<Node>) node.getChildren()) {
-        visitFields(child, variables, out);
+        errors.add(entryError((Throwable) results[i], path.apply(i)));
+        results[i] = null;
       }
     }
+    return errors;
+  }
+
+  private static List<Object> entityPath(int index) {
+    return Arrays.asList(ENTITIES, index);
   }
 
   /**
-   * Re-implementing the GlobalId helpers due to incompatibility with graphql-java Relay Encoder.
-   * It is highly opinionated on non-padding.
-   *
-   * @param type the graphql type
-   * @param id   the idS
-   * @return the global id string
+   * A failure that is allocated once and shared. It is never thrown, so it has no stack trace.
    */
-  public String toGlobalId(String type, String id) {
-    return base64Encoder.encodeToString((type + ":" + id).getBytes(StandardCharsets.UTF_8));
+  private static IllegalArgumentException invalidInput(String message) {
+    IllegalArgumentException e = new IllegalArgumentException(message);
+    e.setStackTrace(new StackTraceElement[0]);
+    return e;
   }
 
-  public ResolvedGlobalId fromGlobalId(String globalId) {
-    String[] split = new String(base64Decoder.decode(globalId), StandardCharsets.UTF_8).split(":", 2);
-    if (split.length != 2) {
-      throw new IllegalArgumentException(String.format("expecting a valid global id, got %s", globalId));
+  private static ErrorCategory errorCategory(Throwable e) {
+    // batches wrap checked exceptions
+    while (e.getClass() == RuntimeException.class && e.getCause() != null) {
+      e = e.getCause();
     }
-    return new ResolvedGlobalId(split[0], split[1]);
+    if (e instanceof InvalidSyntaxException) {
+      return ErrorCategory.INVALID_QUERY;
+    }
+    if (e instanceof JsonProcessingException || e instanceof IllegalArgumentException
+        || e instanceof NullPointerException || e instanceof ClassCastException) {
+      return ErrorCategory.INVALID_INPUT;
+    }
+    if (e instanceof IOException || e instanceof UncheckedIOException) {
+      return ErrorCategory.IO;
+    }
+    return ErrorCategory.INTERNAL;
   }
 
-  public static Builder builder() {
-    return new Builder();
+  private long startTime() {
+    return instrumented ? System.nanoTime() : 0;
   }
 
-  public static class Builder {
-
-    private Parser parser;
-    private ObjectMapper mapper;
+  private long requestStart() {
+    return timed ? System.nanoTime() : 0;
+  }
 
-    private Codec codec;
+  private QueryShapeRegistry.Call newCall(Request request) {
+    if (!queryShapes.isEnabled()) {
+      return null;
+    }
+    QueryShapeRegistry.Call call = new QueryShapeRegistry.Call();
+    call.query = request.getQuery();
+    call.operationName = request.getOperationName();
+    return call;
+  }
 
-    private DocumentProvider documentProvider;
+  /**
+   * Report a handled request to the listener and the query shape registry.
+   *
+   * @param call   The query shape of the request, or null
+   * @param start  The start of the request
+   * @param failed true when the response reports an error
+   */
+  private void completed(QueryShapeRegistry.Call call, long start, boolean failed) {
+    if (!timed) {
+      return;
+    }
+    long duration = System.nanoTime() - start;
+    listener.onRequest(duration, failed);
+    if (call != null) {
+      queryShapes.record(call, duration, failed);
+    }
+  }
 
-    public Builder setParser(Parser parser) {
-      this.parser = parser;
-      return this;
+  /**
+   * Report the time since start to the listener.
+   *
+   * @return The current time, the start of the next phase
+   */
+  private long phase(Phase phase, long start) {
+    if (!instrumented) {
+      return 0;
     }
+    long now = System.nanoTime();
+    listener.onPhase(phase, now - start);
+    return now;
+  }
 
-    public Builder setMapper(ObjectMapper mapper) {
-      this.mapper = mapper;
-      return this;
+  /**
+   * The message of a failure. The shared failures of junk ids and representations reuse theirs.
+   */
+  private static String errorMessage(Throwable e) {
+    if (e == INVALID_ID) {
+      return INVALID_ID_MESSAGE;
     }
+    if (e == INVALID_REPRESENTATION) {
+      return INVALID_REPRESENTATION_MESSAGE;
+    }
+    return newErrorMessage(e);
+  }
 
-    public Builder setCodec(Codec codec) {
-      this.codec = codec;
-      return this;
+  private static String newErrorMessage(Throwable e) {
+    StringBuilder message = new StringBuilder("NODE RELAY ERROR ");
+
+    message
+        .append("message: ").append(e.getMessage())
+        .append("Class: ").append(e.getClass().getName());
+
+    return message.toString();
+  }
+
+  /**
+   * An _entities request always carries its keys in the representations variable,
+   * which is enough to pick the ID generation path without looking at the query.
+   *
+   * @param request The GraphQL request.
+   * @return true when the request asks for IDs to be generated
+   */
+  private boolean isEntitiesRequest(Request request) {
+    return request.getVariables() != null && request.getVariables().containsKey(REPRESENTATIONS);
+  }
+
+  /**
+   * Map a List of GraphQL representations to entity objects.
+   * Each Entity has two properties:  __typename, id.
+   * The id property is computed by Base64 encoding the JSON byte representation.
+   * Froid can be configured with an additional encoder applied to the JSON byte reprsentation.
+   * A representation that can't be encoded is null in the list, with an error at its path.
+   *
+   * @param representations List of representation objects
+   * @return The EntitiesResponse
+   */
+  public EntitiesResponse generateEntityObjectWithId(List<Map<String, Object>> representations) {
+    List<?> batch = randomAccess(representations);
+    listener.onEntities(batch.size());
+    Object[] entities = new Object[batch.size()];
+    encodeBatches.run(entities.length, i -> entities[i] = generateEntity(batch.get(i)));
+
+    return entitiesResponse(entities);
+  }
+
+  /**
+   * The entity of a representation, or the reason it can't be encoded. A representation without a __typename
+   * is rejected without throwing.
+   *
+   * @param representation The representation object
+   * @return The Entity, or the failure
+   */
+  private Object generateEntity(Object representation) {
+    String typeName = typeName(representation);
+    if (typeName == null) {
+      return INVALID_REPRESENTATION;
+    }
+    try {
+      return Entity.builder()
+          .setTypeName(typeName)
+          .setId(generateId(typeName, (Map<String, Object>) representation))
+          .build();
+    } catch (Exception e) {
+      return e;
     }
+  }
 
-    public Builder setDocumentProvider(DocumentProvider documentProvider) {
-      this.documentProvider = documentProvider;
-      return this;
+  /**
+   * @return The __typename of a representation, or null when it is not an object with a __typename
+   */
+  private static String typeName(Object representation) {
+    Object typeName = representation instanceof Map ? ((Map<?, ?>) representation).get(TYPE_NAME) : null;
+    return typeName != null ? typeName.toString() : null;
+  }
+
+  /**
+   * Asynchronous counterpart of {@link #generateEntityObjectWithId(List)}, for requests with an AsyncCodec.
+   *
+   * @param representations List of representation objects
+   * @return The EntitiesResponse, once every id is encoded
+   */
+  private CompletableFuture<EntitiesResponse> generateEntityObjectWithIdAsync(
+      List<Map<String, Object>> representations) {
+    List<?> batch = randomAccess(representations);
+    listener.onEntities(batch.size());
+    Object[] entities = new Object[batch.size()];
+    CompletableFuture<?>[] encoded = new CompletableFuture<?>[entities.length];
+    for (int i = 0; i < entities.length; i++) {
+      int index = i;
+      encoded[i] = generateEntityAsync(batch.get(i)).thenAccept(entity -> entities[index] = entity);
     }
+    return CompletableFuture.allOf(encoded).thenApply(done -> entitiesResponse(entities));
+  }
 
-    public Froid build() {
-      if (parser == null) {
-        parser = new Parser();
+  /**
+   * Asynchronous counterpart of {@link #generateEntity(Object)}. The future always completes normally.
+   */
+  private CompletableFuture<Object> generateEntityAsync(Object representation) {
+    String typeName = typeName(representation);
+    if (typeName == null) {
+      return CompletableFuture.completedFuture(INVALID_REPRESENTATION);
+    }
+    CompletableFuture<String> id;
+    try {
+      id = generateIdAsync(typeName, (Map<String, Object>) representation);
+    } catch (Exception e) {
+      return CompletableFuture.completedFuture(e);
+    }
+    return id.handle((value, e) -> {
+      if (e != null) {
+        return unwrap(e);
       }
+      return Entity.builder().setTypeName(typeName).setId(value).build();
+    });
+  }
 
-      if (mapper == null) {
-        mapper = new ObjectMapper();
-      }
+  /**
+   * @param entities The Entity of each representation, or the reason it failed
+   */
+  private EntitiesResponse entitiesResponse(Object[] entities) {
+    List<Error> errors = entryErrors(entities, Froid::entityPath);
+    return EntitiesResponse
+        .builder()
+        .setData(EntityList
+            .builder()
+            .setEntities(Arrays.asList(Arrays.copyOf(entities, entities.length, Entity[].class)))
+            .build())
+        .setErrors(errors)
+        .build();
+  }
 
-      if (codec == null) {
-        codec = new Codec() {
-          @Override
-          public byte[] encode(byte[] decoded) {
-            return decoded;
-          }
+  /**
+   * Streaming counterpart of {@link #generateEntityObjectWithId(List)}, writes the data field of the response.
+   * Unless the batch is split across the pool, each entity is written as soon as its id is encoded.
+   *
+   * @param representations List of representation objects
+   * @param generator       The generator positioned inside the response object
+   * @return true when a representation failed
+   * @throws IOException Any JSON processing errors
+   */
+  private boolean writeEntityObjectWithId(List<Map<String, Object>> representations, JsonGenerator generator)
+      throws IOException {
+    List<?> batch = randomAccess(representations);
+    listener.onEntities(batch.size());
+    Object[] entities = new Object[batch.size()];
+    List<Error> errors = new ArrayList<>(0);
 
-          @Override
-          public byte[] decode(byte[] encoded) {
-            return encoded;
-          }
-        };
+    generator.writeObjectFieldStart(DATA);
+    generator.writeArrayFieldStart(ENTITIES);
+    try {
+      encodeBatches.run(entities.length, i -> entities[i] = generateEntity(batch.get(i)), i -> {
+        Object entity = entities[i];
+        // released once written, so a batch on the calling thread holds one entity at a time
+        entities[i] = null;
+        if (entity instanceof Throwable) {
+          errors.add(entryError((Throwable) entity, entityPath(i)));
+          entity = null;
+        }
+        writeEntity((Entity) entity, generator);
+      });
+    } catch (RuntimeException e) {
+      // batches wrap checked exceptions
+      if (e.getClass() == RuntimeException.class && e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
       }
+      throw e;
+    }
+    generator.writeEndArray();
+    generator.writeEndObject();
+    if (errors.isEmpty()) {
+      return false;
+    }
+    writeErrors(errors, generator);
+    return true;
+  }
 
-      if (documentProvider == null) {
-        documentProvider = (query, parseFunction) -> parseFunction.apply(query);
+  private static void writeEntity(Entity entity, JsonGenerator generator) throws IOException {
+    if (entity == null) {
+      generator.writeNull();
+      return;
+    }
+    generator.writeStartObject();
+    generator.writeStringField(TYPE_NAME, entity.getTypeName());
+    generator.writeStringField(ID, entity.getId());
+    generator.writeEndObject();
+  }
+
+  /**
+   * Streaming counterpart of {@link #writeEntityObjectWithId(List, JsonGenerator)} reading representations
+   * from the request body.
+   *
+   * @param body      The parser positioned on the representations value
+   * @param generator The generator positioned inside the response object
+   * @param call      Collects the number of representations, or null
+   * @return true when a representation failed
+   * @throws IOException Any JSON processing errors
+   */
+  private boolean writeEntityObjectWithId(JsonParser body, JsonGenerator generator, QueryShapeRegistry.Call call)
+      throws IOException {
+    if (body.currentToken() != JsonToken.START_ARRAY) {
+      throw new IllegalArgumentException("expecting representations to be a list");
+    }
+
+    // binary keys are written from the representation Map, the reader only assembles key JSON
+    RepresentationReader reader = writeBinaryKeys ? null : new RepresentationReader(mapper, keyWriters);
+    generator.writeObjectFieldStart(DATA);
+    generator.writeArrayFieldStart(ENTITIES);
+    // failed entries are written as null as they are reached, their errors follow the data
+    List<Error> errors = null;
+    int count = 0;
+    JsonToken token;
+    while ((token = body.nextToken()) != JsonToken.END_ARRAY && token != null) {
+      Object entity = readEntity(body, reader);
+      if (entity instanceof Throwable) {
+        if (errors == null) {
+          errors = new ArrayList<>();
+        }
+        errors.add(entryError((Throwable) entity, entityPath(count)));
+        entity = null;
+      }
+      writeEntity((Entity) entity, generator);
+      count++;
+    }
+    if (token == null) {
+      throw new IllegalArgumentException("expecting the representations list to end");
+    }
+    listener.onEntities(count);
+    if (call != null) {
+      call.representations = count;
+    }
+    generator.writeEndArray();
+    generator.writeEndObject();
+    writeErrors(errors, generator);
+    return errors != null;
+  }
+
+  /**
+   * The entity of the representation the parser is positioned on, see {@link #generateEntity(Object)}. The
+   * representation is read to its end even when it fails, so the next one can still be read.
+   *
+   * @param body   The parser positioned on the first token of the representation
+   * @param reader The reader of key JSON, or null to read the representation as a Map
+   * @return The Entity, or the failure
+   * @throws IOException Any JSON parsing errors, which fail the request
+   */
+  private Object readEntity(JsonParser body, RepresentationReader reader) throws IOException {
+    if (body.currentToken() != JsonToken.START_OBJECT) {
+      body.skipChildren();
+      return INVALID_REPRESENTATION;
+    }
+    if (reader == null) {
+      return generateEntity(mapper.readValue(body, Map.class));
+    }
+    if (!reader.read(body)) {
+      return INVALID_REPRESENTATION;
+    }
+    try {
+      return Entity.builder()
+          .setTypeName(reader.typeName())
+          .setId(encodeId(reader.typeName(), reader.keys()))
+          .build();
+    } catch (Exception e) {
+      return e;
+    }
+  }
+
+  /**
+   * The id of a representation, from the id cache when enabled.
+   *
+   * @param typeName       The __typename of the representation
+   * @param representation The representation object
+   * @return The global id
+   * @throws IOException Any JSON processing errors
+   */
+  private String generateId(String typeName, Map<String, Object> representation) throws IOException {
+    if (!ids.isEnabled()) {
+      return writeId(typeName, representation);
+    }
+
+    String id = ids.getIfPresent(representation);
+    listener.onCache(Cache.ID, id != null);
+    if (id == null) {
+      id = writeId(typeName, representation);
+      // the caller owns the representation, cache a copy that can't change under the cache
+      ids.put(new HashMap<>(representation), id);
+    }
+    return id;
+  }
+
+  /**
+   * Asynchronous counterpart of {@link #generateId(String, Map)}. Only an AsyncCodec completes later, the keys
+   * are written on the calling thread.
+   *
+   * @param typeName       The __typename of the representation
+   * @param representation The representation object
+   * @return The global id
+   * @throws IOException Any JSON processing errors
+   */
+  private CompletableFuture<String> generateIdAsync(String typeName, Map<String, Object> representation)
+      throws IOException {
+    Codec typeCodec = codecFor(typeName);
+    if (!(typeCodec instanceof AsyncCodec)) {
+      return CompletableFuture.completedFuture(generateId(typeName, representation));
+    }
+
+    String cached = null;
+    if (ids.isEnabled()) {
+      cached = ids.getIfPresent(representation);
+      listener.onCache(Cache.ID, cached != null);
+    }
+    if (cached != null) {
+      return CompletableFuture.completedFuture(cached);
+    }
+    Map<String, Object> key = ids.isEnabled() ? new HashMap<>(representation) : null;
+    long start = startTime();
+    ByteBuffer keys = writeKeys(typeName, representation);
+    long encodeStart = phase(Phase.SERIALIZE, start);
+    byte[] decoded = Arrays.copyOfRange(keys.array(), keys.arrayOffset() + keys.position(),
+        keys.arrayOffset() + keys.limit());
+    return ((AsyncCodec) typeCodec).encodeAsync(decoded).thenApply(encoded -> {
+      long base64Start = phase(Phase.ENCODE, encodeStart);
+      String id = globalIds.encode(typeName, encoded, 0, encoded.length);
+      phase(Phase.BASE64, base64Start);
+      if (key != null) {
+        ids.put(key, id);
+      }
+      return id;
+    });
+  }
+
+  /**
+   * The id is computed by Base64 encoding the JSON byte representation of the keys, after the codec is applied.
+   * Types with a KeyWriter are written by it, in its field order. Otherwise the keys are serialized as a Map.
+   * With the binary key format the keys are written by {@link BinaryKeys} instead, falling back to JSON when a
+   * value has no binary form.
+   *
+   * @param typeName       The __typename of the representation
+   * @param representation The representation object
+   * @return The global id
+   * @throws IOException Any JSON processing errors
+   */
+  private String writeId(String typeName, Map<String, Object> representation) throws IOException {
+    long start = startTime();
+    ByteBuffer keys = writeKeys(typeName, representation);
+    phase(Phase.SERIALIZE, start);
+    return encodeId(typeName, keys);
+  }
+
+  /**
+   * @return The keys of a representation, see {@link #writeId(String, Map)}, as a heap buffer that is only valid
+   *     until the next write on this thread
+   */
+  private ByteBuffer writeKeys(String typeName, Map<String, Object> representation) throws IOException {
+    KeyBuffer buffer = keyBuffers.get();
+    KeyWriter writer = buffer.writer(typeName, keyWriters, representation);
+    boolean matches = writer != null && writer.matches(representation);
+    if (writeBinaryKeys) {
+      ByteBuffer keys = matches
+          ? buffer.writeBinary(writer, keyWriters.declared(typeName) == writer, representation)
+          : buffer.writeBinary(keyMap(representation));
+      if (keys != null) {
+        return keys;
+      }
+    }
+    if (matches) {
+      return buffer.write(writer, representation);
+    }
+
+    return ByteBuffer.wrap(mapper.writeValueAsBytes(keyMap(representation)));
+  }
+
+  /**
+   * The key fields of a representation in the order they are serialized without a KeyWriter.
+   */
+  private Map<Object, Object> keyMap(Map<String, Object> representation) {
+    Map<Object, Object> data = representation.entrySet()
+        .stream()
+        .filter(it -> !it.getKey().equals(TYPE_NAME))
+        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+
+    return keyWriters.isCanonical() ? new TreeMap<>(data) : data;
+  }
+
+  /**
+   * Apply the codec of the type to the key JSON and build the global id. A BufferCodec writes into a per thread buffer,
+   * any other Codec gets its own copy of the keys.
+   *
+   * @param typeName The __typename
+   * @param keys     The key JSON, a heap buffer
+   * @return The global id
+   */
+  private String encodeId(String typeName, ByteBuffer keys) {
+    Codec codec = codecFor(typeName);
+    long start = startTime();
+    byte[] encoded;
+    int offset;
+    int length;
+    if (codec instanceof BufferCodec) {
+      BufferCodec bufferCodec = (BufferCodec) codec;
+      ByteBuffer buffer = codecBuffers.get().encoded(bufferCodec.maxEncodedLength(keys.remaining()));
+      bufferCodec.encode(typeName, keys, buffer);
+      encoded = buffer.array();
+      offset = buffer.arrayOffset();
+      length = buffer.position();
+    } else {
+      encoded = codec.encode(Arrays.copyOfRange(keys.array(), keys.arrayOffset() + keys.position(),
+          keys.arrayOffset() + keys.limit()));
+      offset = 0;
+      length = encoded.length;
+    }
+    start = phase(Phase.ENCODE, start);
+
+    String id = globalIds.encode(typeName, encoded, offset, length);
+    phase(Phase.BASE64, start);
+    return id;
+  }
+
+  /**
+   * Map an ID to an Entity object. Search the parsed GraphQL document for
+   * node fields with an id argument.
+   *
+   * @param root      The root node of the parsed GraphQL query.
+   * @param variables The GraphQL variables passed as part of the request.
+   * @return The EntityObjectResponse
+   * @throws IOException Any JSON parsing errors
+   */
+  public EntityObjectResponse generateEntityObjectsById(Node root, Map<String, Object> variables) throws IOException {
+    return generateEntityObjectsById(NodePlan.compile(root, projectNodes), variables);
+  }
+
+  /**
+   * Map an ID to an Entity object for every entry of a compiled node plan.
+   *
+   * @param plan      The compiled node query.
+   * @param variables The GraphQL variables passed as part of the request.
+   * @return The EntityObjectResponse
+   * @throws IOException Any JSON parsing errors
+   */
+  EntityObjectResponse generateEntityObjectsById(NodePlan plan, Map<String, Object> variables) throws IOException {
+    listener.onNodes(plan.size());
+    return entityObjectsResponse(plan, resolveNodes(plan, variables, false));
+  }
+
+  /**
+   * Asynchronous counterpart of {@link #generateEntityObjectsById(NodePlan, Map)}, for requests with an AsyncCodec.
+   *
+   * @param plan      The compiled node query.
+   * @param variables The GraphQL variables passed as part of the request.
+   * @return The EntityObjectResponse, once every id is decoded
+   */
+  private CompletableFuture<BaseResponse> generateEntityObjectsByIdAsync(NodePlan plan, Map<String, Object> variables) {
+    listener.onNodes(plan.size());
+    Object[] resolved = new Object[plan.size()];
+    CompletableFuture<?>[] decoded = new CompletableFuture<?>[resolved.length];
+    for (int i = 0; i < resolved.length; i++) {
+      int index = i;
+      decoded[i] = resolveEntryAsync(plan, i, variables).thenAccept(node -> resolved[index] = node);
+    }
+    return CompletableFuture.allOf(decoded).thenApply(done -> entityObjectsResponse(plan, resolved));
+  }
+
+  /**
+   * @param resolved The entity object of each plan entry, or the reason it failed
+   */
+  private EntityObjectResponse entityObjectsResponse(NodePlan plan, Object[] resolved) {
+    List<Error> errors = entryErrors(resolved, i -> Collections.singletonList(plan.responseName(i)));
+    HashMap<String, Object> mapped = new HashMap<>();
+    for (int i = 0; i < resolved.length; i++) {
+      mapped.put(plan.responseName(i), resolved[i]);
+    }
+    return EntityObjectResponse.builder().setData(mapped).setError(errors).build();
+  }
+
+  /**
+   * Streaming counterpart of {@link #generateEntityObjectsById(NodePlan, Map)}, writes the data field of the
+   * response.
+   *
+   * @param plan      The compiled node query.
+   * @param variables The GraphQL variables passed as part of the request.
+   * @param generator The generator positioned inside the response object
+   * @return true when a node field failed
+   * @throws IOException Any JSON processing errors
+   */
+  private boolean writeEntityObjectsById(NodePlan plan, Map<String, Object> variables, JsonGenerator generator)
+      throws IOException {
+    listener.onNodes(plan.size());
+    Object[] resolved = resolveNodes(plan, variables, spliceNodeKeys && !nodes.isEnabled());
+    List<Error> errors = entryErrors(resolved, i -> Collections.singletonList(plan.responseName(i)));
+
+    generator.writeObjectFieldStart(DATA);
+    for (int i = 0; i < resolved.length; i++) {
+      if (resolved[i] instanceof RawNode) {
+        generator.writeFieldName(plan.responseName(i));
+        generator.writeRawValue((RawNode) resolved[i]);
+      } else {
+        generator.writeObjectField(plan.responseName(i), resolved[i]);
+      }
+    }
+    generator.writeEndObject();
+    writeErrors(errors, generator);
+    return errors != null;
+  }
+
+  /**
+   * @param splice true to splice the keys of unprojected entries into a RawNode, see {@link #spliceNode(String)}
+   * @return The entity object of each plan entry, or the reason it failed
+   */
+  private Object[] resolveNodes(NodePlan plan, Map<String, Object> variables, boolean splice) {
+    Object[] resolved = new Object[plan.size()];
+    decodeBatches.run(resolved.length, i -> resolved[i] = resolveEntry(plan, i, variables, splice));
+    return resolved;
+  }
+
+  /**
+   * The entity object of a plan entry, or the reason it can't be decoded. A malformed id is rejected without
+   * throwing.
+   *
+   * @param plan      The compiled node query.
+   * @param index     The plan entry.
+   * @param variables The GraphQL variables passed as part of the request.
+   * @param splice    true to splice unprojected keys into a RawNode
+   * @return The projected entity object, a RawNode, or the failure
+   */
+  private Object resolveEntry(NodePlan plan, int index, Map<String, Object> variables, boolean splice) {
+    try {
+      String idValue = plan.idValue(index, variables);
+      if (splice && !plan.isProjected(index)) {
+        Object node = spliceNode(idValue);
+        return node != null ? node : INVALID_ID;
+      }
+      Map<String, Object> node = resolveNode(idValue);
+      return node != null ? plan.project(index, node) : INVALID_ID;
+    } catch (Exception e) {
+      return e;
+    }
+  }
+
+  /**
+   * Asynchronous counterpart of {@link #resolveEntry(NodePlan, int, Map, boolean)}. The future always completes
+   * normally.
+   */
+  private CompletableFuture<Object> resolveEntryAsync(NodePlan plan, int index, Map<String, Object> variables) {
+    CompletableFuture<Map<String, Object>> node;
+    try {
+      node = resolveNodeAsync(plan.idValue(index, variables));
+    } catch (RuntimeException e) {
+      return CompletableFuture.completedFuture(e);
+    }
+    return node.handle((value, e) -> {
+      if (e != null) {
+        return unwrap(e);
+      }
+      return value != null ? plan.project(index, value) : INVALID_ID;
+    });
+  }
+
+  /**
+   * The entity object of a global id, from the node cache when enabled. Every call returns its own Map.
+   *
+   * @param idValue The global id
+   * @return The entity object, or null when the id is malformed
+   * @throws IOException Any I/O errors reading the keys
+   */
+  private Map<String, Object> resolveNode(String idValue) throws IOException {
+    if (!nodes.isEnabled()) {
+      return decodeNode(idValue);
+    }
+
+    Map<String, Object> node = nodes.getIfPresent(idValue);
+    listener.onCache(Cache.NODE, node != null);
+    if (node == null) {
+      node = decodeNode(idValue);
+      if (node != null) {
+        nodes.put(idValue, new LinkedHashMap<>(node));
+      }
+      return node;
+    }
+    return new LinkedHashMap<>(node);
+  }
+
+  /**
+   * Decode a global id back into the entity keys, along with its __typename and id.
+   *
+   * @param idValue The global id
+   * @return The entity object, or null when the id is malformed
+   * @throws IOException Any I/O errors reading the keys
+   */
+  private Map<String, Object> decodeNode(String idValue) throws IOException {
+    return decodeKeys(idValue, (typeName, keys, offset, length) -> readNode(typeName, keys, offset, length, idValue));
+  }
+
+  /**
+   * Asynchronous counterpart of {@link #resolveNode(String)}. Only an AsyncCodec completes later.
+   *
+   * @param idValue The global id
+   * @return The entity object, or null when the id is malformed
+   */
+  private CompletableFuture<Map<String, Object>> resolveNodeAsync(String idValue) {
+    try {
+      Map<String, Object> cached = null;
+      if (nodes.isEnabled()) {
+        cached = nodes.getIfPresent(idValue);
+        listener.onCache(Cache.NODE, cached != null);
+      }
+      if (cached != null) {
+        return CompletableFuture.completedFuture(new LinkedHashMap<>(cached));
+      }
+
+      long start = startTime();
+      GlobalIds.Parsed globalId = globalIds.decode(idValue);
+      if (globalId == null) {
+        return CompletableFuture.completedFuture(null);
+      }
+      Codec typeCodec = codecFor(globalId.typeName());
+      if (!(typeCodec instanceof AsyncCodec)) {
+        Map<String, Object> node = decodeNode(idValue);
+        if (node != null && nodes.isEnabled()) {
+          nodes.put(idValue, new LinkedHashMap<>(node));
+        }
+        return CompletableFuture.completedFuture(node);
+      }
+      long decodeStart = phase(Phase.BASE64, start);
+
+      // the parsed id is a per thread buffer, the codec gets its own copy
+      String typeName = globalId.typeName();
+      byte[] encoded = Arrays.copyOf(globalId.id(), globalId.idLength());
+      return ((AsyncCodec) typeCodec).decodeAsync(encoded).thenApply(keys -> {
+        try {
+          long readStart = phase(Phase.DECODE, decodeStart);
+          Map<String, Object> node = readNode(typeName, keys, 0, keys.length, idValue);
+          phase(Phase.DESERIALIZE, readStart);
+          if (node != null && nodes.isEnabled()) {
+            nodes.put(idValue, new LinkedHashMap<>(node));
+          }
+          return node;
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Read decoded keys into an entity object, with its __typename and id.
+   *
+   * @return The entity object, or null when the keys are malformed
+   */
+  private Map<String, Object> readNode(String typeName, byte[] keys, int offset, int length, String idValue)
+      throws IOException {
+    Map<String, Object> data = readKeys(typeName, keys, offset, length);
+    if (data == null) {
+      return null;
+    }
+    data.put(TYPE_NAME, typeName);
+    data.put(ID, idValue);
+    return data;
+  }
+
+  /**
+   * Decode a global id into an entity object for a streamed response. JSON keys are spliced into the
+   * response as they are when they qualify, see {@link RawNode}, and otherwise read into a Map.
+   *
+   * @param idValue The global id
+   * @return The RawNode or Map, or null when the id is malformed
+   * @throws IOException Any I/O errors reading the keys
+   */
+  private Object spliceNode(String idValue) throws IOException {
+    return decodeKeys(idValue, (typeName, keys, offset, length) -> {
+      RawNode node = RawNode.splice(mapper.getFactory(), keys, offset, length, typeName, idValue);
+      if (node != null) {
+        return node;
+      }
+      return readNode(typeName, keys, offset, length, idValue);
+    });
+  }
+
+  @FunctionalInterface
+  private interface KeysReader<T> {
+
+    T read(String typeName, byte[] keys, int offset, int length) throws IOException;
+  }
+
+  /**
+   * Parse a global id and apply the codec of its type. A BufferCodec decodes into a per thread buffer,
+   * which the reader must not hold on to. A malformed id, or one the BufferCodec rejects, returns null without
+   * calling the reader.
+   */
+  private <T> T decodeKeys(String idValue, KeysReader<T> reader) throws IOException {
+    long start = startTime();
+    GlobalIds.Parsed globalId = globalIds.decode(idValue);
+    if (globalId == null) {
+      return null;
+    }
+    start = phase(Phase.BASE64, start);
+    Codec codec = codecFor(globalId.typeName());
+    T node;
+    if (codec instanceof BufferCodec) {
+      BufferCodec bufferCodec = (BufferCodec) codec;
+      ByteBuffer decoded = codecBuffers.get().decoded(bufferCodec.maxDecodedLength(globalId.idLength()));
+      if (!bufferCodec.decode(globalId.typeName(), ByteBuffer.wrap(globalId.id(), 0, globalId.idLength()), decoded)) {
+        return null;
+      }
+      start = phase(Phase.DECODE, start);
+      node = reader.read(globalId.typeName(), decoded.array(), decoded.arrayOffset(), decoded.position());
+    } else {
+      byte[] base64Decoded = Arrays.copyOf(globalId.id(), globalId.idLength());
+      byte[] froidDecoded = codec.decode(base64Decoded);
+      start = phase(Phase.DECODE, start);
+      node = reader.read(globalId.typeName(), froidDecoded, 0, froidDecoded.length);
+    }
+    phase(Phase.DESERIALIZE, start);
+    return node;
+  }
+
+  /**
+   * Read decoded keys in either key format, whatever format new ids are written in.
+   *
+   * @return The key fields, or null when the keys are malformed
+   */
+  private Map<String, Object> readKeys(String typeName, byte[] keys, int offset, int length) throws IOException {
+    if (length > 0 && BinaryKeys.isBinary(keys[offset])) {
+      return binaryKeys.read(typeName, keys, offset, length);
+    }
+    // junk that can't be a JSON object is rejected before the parser builds an exception for it
+    if (length == 0 || keys[offset] != '{') {
+      return null;
+    }
+    try {
+      return mapper.readValue(keys, offset, length, Map.class);
+    } catch (JsonProcessingException e) {
+      return null;
+    }
+  }
+
+  /**
+   * The codec of a type: the one set for the type on the builder, or the default codec.
+   */
+  private Codec codecFor(String typeName) {
+    if (typeCodecs.isEmpty()) {
+      return codec;
+    }
+    Codec typeCodec = typeCodecs.get(typeName);
+    return typeCodec != null ? typeCodec : codec;
+  }
+
+  private static <T> List<T> randomAccess(List<T> list) {
+    return list instanceof RandomAccess ? list : new ArrayList<>(list);
+  }
+
+  /**
+   * Append the errors of failed entries after the data field, each with the path of its entry.
+   *
+   * @param errors    The errors, or null when no entry failed
+   * @param generator The generator positioned inside the response object
+   * @throws IOException Any errors writing to the output stream
+   */
+  private static void writeErrors(List<Error> errors, JsonGenerator generator) throws IOException {
+    if (errors == null) {
+      return;
+    }
+    generator.writeArrayFieldStart(ERRORS);
+    for (Error error : errors) {
+      generator.writeStartObject();
+      generator.writeStringField(MESSAGE, error.getMessage());
+      generator.writeArrayFieldStart(PATH);
+      for (Object segment : error.getPath()) {
+        generator.writeObject(segment);
+      }
+      generator.writeEndArray();
+      generator.writeEndObject();
+    }
+    generator.writeEndArray();
+  }
+
+  /**
+   * Close whatever part of the response was written before the failure and append the error.
+   * Entries are only written once fully produced, so the generator is never left after a dangling field name.
+   *
+   * @param message   The error message
+   * @param generator The generator somewhere inside the response object
+   * @throws IOException Any errors writing to the output stream
+   */
+  private static void writeError(String message, JsonGenerator generator) throws IOException {
+    while (!generator.getOutputContext().getParent().inRoot()) {
+      if (generator.getOutputContext().inArray()) {
+        generator.writeEndArray();
+      } else {
+        generator.writeEndObject();
+      }
+    }
+    if (!generator.getOutputContext().hasCurrentName()) {
+      generator.writeNullField(DATA);
+    }
+    generator.writeArrayFieldStart(ERRORS);
+    generator.writeStartObject();
+    generator.writeStringField(MESSAGE, message);
+    generator.writeEndObject();
+    generator.writeEndArray();
+  }
+
+  /**
+   * Compile the node fields of a query into a plan. Queries are read with the NodeQueryScanner when enabled,
+   * anything it does not understand is parsed through the DocumentProvider.
+   *
+   * @param query The GraphQL query text.
+   * @return The compiled plan
+   */
+  private NodePlan compilePlan(String query) {
+    NodePlan plan = scanPlan(query);
+    if (plan != null) {
+      return plan;
+    }
+    long start = startTime();
+    Document document = documentProvider.apply(query, this::parseDocument);
+    phase(Phase.DOCUMENT_PROVIDER, start);
+    return compilePlan(document);
+  }
+
+  /**
+   * The compiled plan of a query, from the plan cache when enabled.
+   *
+   * @param query The GraphQL query text.
+   * @return The compiled plan
+   */
+  private NodePlan plan(String query) {
+    if (!plans.isEnabled()) {
+      return compilePlan(query);
+    }
+    NodePlan plan = plans.getIfPresent(query);
+    listener.onCache(Cache.PLAN, plan != null);
+    if (plan == null) {
+      plan = compilePlan(query);
+      plans.put(query, plan);
+    }
+    return plan;
+  }
+
+  private Document parseDocument(String query) {
+    long start = startTime();
+    Document document = parser.parseDocument(query);
+    phase(Phase.PARSE, start);
+    return document;
+  }
+
+  /**
+   * Asynchronous counterpart of {@link #compilePlan(String)} going through the plan cache, for requests with an
+   * AsyncDocumentProvider.
+   *
+   * @param query The GraphQL query text.
+   * @return The compiled plan
+   */
+  private CompletableFuture<NodePlan> planAsync(String query) {
+    NodePlan cached = null;
+    if (plans.isEnabled()) {
+      cached = plans.getIfPresent(query);
+      listener.onCache(Cache.PLAN, cached != null);
+    }
+    if (cached != null) {
+      return CompletableFuture.completedFuture(cached);
+    }
+
+    CompletableFuture<NodePlan> plan;
+    if (documentProvider instanceof AsyncDocumentProvider) {
+      NodePlan scanned = scanPlan(query);
+      long start = startTime();
+      plan = scanned != null ? CompletableFuture.completedFuture(scanned)
+          : ((AsyncDocumentProvider) documentProvider).applyAsync(query, this::parseDocument).thenApply(document -> {
+            phase(Phase.DOCUMENT_PROVIDER, start);
+            return compilePlan(document);
+          });
+    } else {
+      plan = CompletableFuture.completedFuture(compilePlan(query));
+    }
+    return plan.thenApply(compiled -> {
+      plans.put(query, compiled);
+      return compiled;
+    });
+  }
+
+  /**
+   * @return The plan of a query read with the NodeQueryScanner, or null when it is disabled or can't read the query
+   */
+  private NodePlan scanPlan(String query) {
+    // the scanner skips selection sets, projections need the parsed query
+    if (!scanNodeQueries || projectNodes) {
+      return null;
+    }
+    long start = startTime();
+    NodePlan plan = NodeQueryScanner.scan(query);
+    if (plan != null) {
+      phase(Phase.COMPILE, start);
+    }
+    return plan;
+  }
+
+  private NodePlan compilePlan(Document document) {
+    long start = startTime();
+    NodePlan plan = document.getChildren()
+        .stream()
+        .findFirst()
+        .map(root -> NodePlan.compile(root, projectNodes))
+        .orElseThrow(() -> new RuntimeException("failed to generate entity objects"));
+    phase(Phase.COMPILE, start);
+    return plan;
+  }
+
+  /**
+   * Re-implementing the GlobalId helpers due to incompatibility with graphql-java Relay Encoder.
+   * It is highly opinionated on non-padding.
+   *
+   * @param type the graphql type
+   * @param id   the idS
+   * @return the global id string
+   */
+  public String toGlobalId(String type, String id) {
+    return base64Encoder.encodeToString((type + ":" + id).getBytes(StandardCharsets.UTF_8));
+  }
+
+  public ResolvedGlobalId fromGlobalId(String globalId) {
+    String[] split = new String(base64Decoder.decode(globalId), StandardCharsets.UTF_8).split(":", 2);
+    if (split.length != 2) {
+      throw new IllegalArgumentException(String.format("expecting a valid global id, got %s", globalId));
+    }
+    return new ResolvedGlobalId(split[0], split[1]);
+  }
+
+  /**
+   * @return The counters of the cache of compiled node queries
+   */
+  public CacheStats getPlanCacheStats() {
+    return plans.stats();
+  }
+
+  /**
+   * @return The counters of the representation to id cache, see {@link Builder#setIdCacheSize(int)}
+   */
+  public CacheStats getIdCacheStats() {
+    return ids.stats();
+  }
+
+  /**
+   * @return The counters of the id to entity object cache, see {@link Builder#setNodeCacheSize(int)}
+   */
+  public CacheStats getNodeCacheStats() {
+    return nodes.stats();
+  }
+
+  /**
+   * @param limit The maximum number of query shapes to return
+   * @return The most called query texts, most called first, see {@link Builder#setQueryShapeRegistrySize(int)}
+   */
+  public List<QueryShapeStats> getQueryShapes(int limit) {
+    return queryShapes.top(limit);
+  }
+
+  /**
+   * Compile query texts into the plan cache ahead of traffic, e.g. the queries of {@link #getQueryShapes(int)}
+   * saved by a previous deploy. Queries go through the DocumentProvider, so its own cache is filled as well.
+   * A query that can't be compiled is skipped, it fails when it is requested. Like warm-up, preloading is not
+   * reported to the listener.
+   *
+   * @param queries The GraphQL query texts
+   * @return The number of queries compiled
+   */
+  public int preloadQueries(Collection<String> queries) {
+    return new Froid(this).compileQueries(queries);
+  }
+
+  private int compileQueries(Collection<String> queries) {
+    int compiled = 0;
+    for (String query : queries) {
+      try {
+        plan(query);
+        compiled++;
+      } catch (RuntimeException e) {
+        // not a usable query, nothing to preload
+      }
+    }
+    return compiled;
+  }
+
+  /**
+   * Run representative requests through every handler before taking traffic, so the parser, Jackson's serializers
+   * of the model classes, the codecs and the JIT are warm for the first real requests. Each round handles every
+   * request with the model, streaming, raw body and, with an async hook, async handlers, serializes the model
+   * response, and compiles node queries past the plan cache. The ids of _entities requests are decoded back by
+   * a node query, so a set of representations warms both directions. Responses are discarded and failed requests
+   * don't stop warm-up. Warm-up requests are not reported to the listener or the query shapes.
+   *
+   * @param requests   Representative requests, e.g. an _entities request per type and the common node queries
+   * @param iterations The number of rounds
+   */
+  public void warmUp(List<Request> requests, int iterations) {
+    checkWarmUpIterations(iterations);
+    new Froid(this).runWarmUp(requests, iterations);
+  }
+
+  private void runWarmUp(List<Request> requests, int iterations) {
+    List<Request> rounds = new ArrayList<>(requests);
+    for (Request request : requests) {
+      if (isEntitiesRequest(request)) {
+        Request nodes = nodeRequest((EntitiesResponse) handleFroidRequest(request));
+        if (nodes != null) {
+          rounds.add(nodes);
+        }
+      }
+    }
+
+    try {
+      List<byte[]> bodies = new ArrayList<>();
+      for (Request request : rounds) {
+        bodies.add(mapper.writeValueAsBytes(request));
+      }
+      // rounds go over every request in turn, so the JIT profiles the mix of types real traffic has
+      for (int i = 0; i < iterations; i++) {
+        for (int r = 0; r < rounds.size(); r++) {
+          warmUp(rounds.get(r), bodies.get(r));
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void warmUp(Request request, byte[] body) throws IOException {
+    mapper.writeValueAsBytes(handleFroidRequest(request));
+    handleFroidRequest(request, DISCARD);
+    handleFroidRequest(body, DISCARD);
+    if (asyncHooks) {
+      handleFroidRequestAsync(request).join();
+    }
+    if (!isEntitiesRequest(request)) {
+      try {
+        compilePlan(request.getQuery());
+      } catch (RuntimeException e) {
+        // the handlers already answered it with an error
+      }
+    }
+  }
+
+  /**
+   * A node query over the ids of an _entities response, one node field per id.
+   *
+   * @return The node request, or null when no id was generated
+   */
+  private static Request nodeRequest(EntitiesResponse response) {
+    if (response.getData() == null) {
+      return null;
+    }
+    StringBuilder variableDefinitions = new StringBuilder();
+    StringBuilder fields = new StringBuilder();
+    Map<String, Object> variables = new HashMap<>();
+    for (Entity entity : response.getData().getEntities()) {
+      if (entity != null) {
+        String name = "n" + variables.size();
+        variableDefinitions.append(variables.isEmpty() ? "" : ",").append('$').append(name).append(":ID!");
+        fields.append(name).append(":node(id:$").append(name).append("){__typename} ");
+        variables.put(name, entity.getId());
+      }
+    }
+    if (variables.isEmpty()) {
+      return null;
+    }
+    return Request.builder()
+        .setQuery("query (" + variableDefinitions + ") {" + fields + "}")
+        .setVariables(variables)
+        .build();
+  }
+
+  /**
+   * Warm up on the executor, see {@link Builder#setWarmUpRequests(List)}.
+   */
+  private void startWarmUp(Collection<String> queries, List<Request> requests, int iterations) {
+    if (queries.isEmpty() && requests.isEmpty()) {
+      warmUp.complete(null);
+      return;
+    }
+    checkWarmUpIterations(iterations);
+    // the builder's collections may still change while warm-up runs
+    List<String> warmUpQueries = new ArrayList<>(queries);
+    List<Request> warmUpRequests = new ArrayList<>(requests);
+    Froid quiet = new Froid(this);
+    CompletableFuture.runAsync(() -> {
+      quiet.compileQueries(warmUpQueries);
+      if (!warmUpRequests.isEmpty()) {
+        quiet.runWarmUp(warmUpRequests, iterations);
+      }
+    }, executor).whenComplete((done, e) -> {
+      if (e != null) {
+        warmUp.completeExceptionally(unwrap(e));
+      } else {
+        warmUp.complete(null);
+      }
+    });
+  }
+
+  private static void checkWarmUpIterations(int iterations) {
+    if (iterations < 1) {
+      throw new IllegalArgumentException(String.format("expecting a positive number of iterations, got %d",
+          iterations));
+    }
+  }
+
+  /**
+   * Completes once the warm-up set on the builder is done, right away when none was set, e.g. for a readiness
+   * probe to wait for. A warm-up that fails, e.g. on a null request, completes it exceptionally.
+   *
+   * @return The warm-up
+   */
+  public CompletableFuture<Void> getWarmUp() {
+    // a dependent future, so callers can't complete the warm-up themselves
+    return warmUp.thenApply(Function.identity());
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+
+    private Parser parser;
+    private ObjectMapper mapper;
+
+    private Codec codec;
+
+    private final Map<String, Codec> typeCodecs = new HashMap<>();
+
+    private DocumentProvider documentProvider;
+
+    private int planCacheSize = DEFAULT_PLAN_CACHE_SIZE;
+
+    private boolean scanNodeQueries;
+
+    private ForkJoinPool forkJoinPool;
+
+    private int parallelThreshold = BatchExecutor.ADAPTIVE;
+
+    private final Map<String, KeyWriter> keyWriters = new HashMap<>();
+
+    private boolean canonicalKeyOrder;
+
+    private KeyFormat keyFormat = KeyFormat.JSON;
+
+    private int idCacheSize;
+
+    private int nodeCacheSize;
+
+    private boolean spliceNodeKeys;
+
+    private boolean projectNodes;
+
+    private Executor executor;
+
+    private FroidListener listener;
+
+    private int queryShapeRegistrySize;
+
+    private List<Request> warmUpRequests = Collections.emptyList();
+
+    private Collection<String> warmUpQueries = Collections.emptyList();
+
+    private int warmUpIterations = DEFAULT_WARM_UP_ITERATIONS;
+
+    public Builder setParser(Parser parser) {
+      this.parser = parser;
+      return this;
+    }
+
+    public Builder setMapper(ObjectMapper mapper) {
+      this.mapper = mapper;
+      return this;
+    }
+
+    public Builder setCodec(Codec codec) {
+      this.codec = codec;
+      return this;
+    }
+
+    /**
+     * Use a different codec for the ids of one type, e.g. plain, signed or encrypted ids depending on what
+     * each type needs. On decode the codec is picked by the type name in the global id, so changing the
+     * codec of a type invalidates the ids issued for it before.
+     *
+     * @param typeName The __typename
+     * @param codec    The codec for the ids of this type
+     * @return The builder
+     */
+    public Builder setCodec(String typeName, Codec codec) {
+      this.typeCodecs.put(typeName, codec);
+      return this;
+    }
+
+    public Builder setDocumentProvider(DocumentProvider documentProvider) {
+      this.documentProvider = documentProvider;
+      return this;
+    }
+
+    /**
+     * Node queries are compiled once per distinct query text and kept in a bounded cache.
+     * Set to 0 to compile on every request, e.g. when the DocumentProvider already caches.
+     *
+     * @param planCacheSize The maximum number of compiled queries to keep
+     * @return The builder
+     */
+    public Builder setPlanCacheSize(int planCacheSize) {
+      this.planCacheSize = planCacheSize;
+      return this;
+    }
+
+    /**
+     * Read node queries generated by the federation gateway with a lightweight scanner instead of the
+     * graphql-java Parser. Queries outside the scanner's grammar are still handled by the Parser and
+     * DocumentProvider.
+     *
+     * @param scanNodeQueries true to enable the scanner
+     * @return The builder
+     */
+    public Builder setNodeQueryScanner(boolean scanNodeQueries) {
+      this.scanNodeQueries = scanNodeQueries;
+      return this;
+    }
+
+    /**
+     * Split large representation batches and queries with many node fields across a ForkJoinPool.
+     * Results keep the order of the request. Without a pool every request runs on the calling thread.
+     *
+     * @param forkJoinPool The pool, e.g. ForkJoinPool.commonPool()
+     * @return The builder
+     */
+    public Builder setForkJoinPool(ForkJoinPool forkJoinPool) {
+      this.forkJoinPool = forkJoinPool;
+      return this;
+    }
+
+    /**
+     * The minimum number of representations or node fields before a request is split across the ForkJoinPool.
+     * By default the threshold adapts to the measured cost per entity, which mostly depends on the Codec.
+     *
+     * @param parallelThreshold The minimum batch size, or 0 to adapt
+     * @return The builder
+     */
+    public Builder setParallelThreshold(int parallelThreshold) {
+      this.parallelThreshold = parallelThreshold;
+      return this;
+    }
+
+    /**
+     * Declare the key fields of a type. Its ids are written by a writer compiled for these fields, in this
+     * order, as long as a representation carries exactly these fields.
+     *
+     * @param typeName  The __typename
+     * @param keyFields The key fields, in the order they are written to the id
+     * @return The builder
+     */
+    public Builder setKeyFields(String typeName, String... keyFields) {
+      this.keyWriters.put(typeName, new KeyWriter(keyFields));
+      return this;
+    }
+
+    /**
+     * Write the key fields of types without declared key fields in lexicographic order, learning a writer
+     * per type from its first representation. Without it keys are written in HashMap iteration order.
+     * Enabling this changes the ids of types with more than one key field.
+     *
+     * @param canonicalKeyOrder true to sort key fields
+     * @return The builder
+     */
+    public Builder setCanonicalKeyOrder(boolean canonicalKeyOrder) {
+      this.canonicalKeyOrder = canonicalKeyOrder;
+      return this;
+    }
+
+    /**
+     * Serialize keys as JSON, the default, or in a shorter binary format that is also cheaper to decode.
+     * Ids in both formats are always accepted, so the format can be switched without invalidating ids.
+     * The binary format omits field names for types with declared key fields, so changing the declared
+     * fields of a type invalidates its binary ids.
+     *
+     * @param keyFormat The format new ids are written in
+     * @return The builder
+     */
+    public Builder setKeyFormat(KeyFormat keyFormat) {
+      this.keyFormat = keyFormat;
+      return this;
+    }
+
+    /**
+     * Cache the id of each representation, skipping key serialization, the codec and base64 for representations
+     * seen before. Hot entities then cost a map lookup. The cache keeps the most frequently used entries. It
+     * applies to representations passed as Maps; raw request bodies are read without building them. With a
+     * codec that encrypts with a random nonce, a cached representation keeps getting the same id.
+     *
+     * @param idCacheSize The maximum number of cached ids, 0 (the default) to disable the cache
+     * @return The builder
+     */
+    public Builder setIdCacheSize(int idCacheSize) {
+      this.idCacheSize = idCacheSize;
+      return this;
+    }
+
+    /**
+     * Cache the entity object of each node id, skipping base64, the codec and key parsing for ids seen before.
+     * Each response gets a shallow copy of the cached object. The cache keeps the most frequently used entries.
+     *
+     * @param nodeCacheSize The maximum number of cached entity objects, 0 (the default) to disable the cache
+     * @return The builder
+     */
+    public Builder setNodeCacheSize(int nodeCacheSize) {
+      this.nodeCacheSize = nodeCacheSize;
+      return this;
+    }
+
+    /**
+     * When streaming node responses, validate the decoded key JSON and write it into the response as is, with
+     * __typename and id appended, instead of reading it into a Map and serializing it again. Keys that are not
+     * a plain JSON object, that hold __typename or id, or that are binary are still read into a Map, as are
+     * all keys when the node cache is enabled. The key JSON is written the way it was stored, e.g. with the
+     * whitespace of a mapper that indents.
+     *
+     * @param spliceNodeKeys true to splice key JSON in streamed responses
+     * @return The builder
+     */
+    public Builder setSpliceNodeKeys(boolean spliceNodeKeys) {
+      this.spliceNodeKeys = spliceNodeKeys;
+      return this;
+    }
+
+    /**
+     * Return only the fields each node field selects, under their aliases, instead of every key field of
+     * the id. Inline fragments apply when their type condition is the decoded __typename or Node. Node
+     * fields with fragment spreads or directives still return every key field. Projections are compiled
+     * with the query plan, so node queries are always parsed and never scanned, see
+     * {@link #setNodeQueryScanner(boolean)}.
+     *
+     * @param projectNodes true to project node fields on their selection set
+     * @return The builder
+     */
+    public Builder setNodeProjection(boolean projectNodes) {
+      this.projectNodes = projectNodes;
+      return this;
+    }
+
+    /**
+     * The executor {@link Froid#handleFroidRequestAsync(Request)} handles requests on, the common ForkJoinPool by
+     * default. Codecs and key writers keep their ciphers and buffers per thread, so a pool of long-lived threads
+     * reuses them; a virtual thread per request, e.g. {@code Executors.newVirtualThreadPerTaskExecutor()}, starts
+     * each request without them and rebuilds them every time.
+     *
+     * @param executor The executor
+     * @return The builder
+     */
+    public Builder setExecutor(Executor executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    /**
+     * Report request and per phase timings, batch sizes, cache hits and errors to a listener, e.g.
+     * {@link com.wayfair.javafroid.metrics.FroidMetrics}. Without one nothing is measured.
+     *
+     * @param listener The listener
+     * @return The builder
+     */
+    public Builder setListener(FroidListener listener) {
+      this.listener = listener;
+      return this;
+    }
+
+    /**
+     * Keep call counts, latencies, node counts and representation batch sizes per distinct query text, read with
+     * {@link Froid#getQueryShapes(int)}, e.g. to size the caches or pick the queries to warm up. Once full, the
+     * least called shapes are evicted. Raw request bodies that list their representations before the query are
+     * not tracked, the query is not read before they are handled.
+     *
+     * @param queryShapeRegistrySize The maximum number of tracked query texts, 0 (the default) to disable
+     * @return The builder
+     */
+    public Builder setQueryShapeRegistrySize(int queryShapeRegistrySize) {
+      this.queryShapeRegistrySize = queryShapeRegistrySize;
+      return this;
+    }
+
+    /**
+     * Warm up the built Froid in the background on the executor, see {@link Froid#warmUp(List, int)}. Wait for
+     * {@link Froid#getWarmUp()} before reporting ready.
+     *
+     * @param warmUpRequests Representative requests
+     * @return The builder
+     */
+    public Builder setWarmUpRequests(List<Request> warmUpRequests) {
+      this.warmUpRequests = warmUpRequests;
+      return this;
+    }
+
+    /**
+     * Compile query texts before the warm-up requests run, see {@link Froid#preloadQueries(Collection)}.
+     *
+     * @param warmUpQueries The GraphQL query texts, e.g. saved from {@link Froid#getQueryShapes(int)}
+     * @return The builder
+     */
+    public Builder setWarmUpQueries(Collection<String> warmUpQueries) {
+      this.warmUpQueries = warmUpQueries;
+      return this;
+    }
+
+    /**
+     * @param warmUpIterations The number of warm-up rounds over the warm-up requests, 100 by default
+     * @return The builder
+     */
+    public Builder setWarmUpIterations(int warmUpIterations) {
+      this.warmUpIterations = warmUpIterations;
+      return this;
+    }
+
+    public Froid build() {
+      if (parser == null) {
+        parser = new Parser();
+      }
+
+      if (mapper == null) {
+        mapper = new ObjectMapper();
+      }
+
+      if (codec == null) {
+        codec = new BufferCodec() {
+          @Override
+          public int maxEncodedLength(int decodedLength) {
+            return decodedLength;
+          }
+
+          @Override
+          public int maxDecodedLength(int encodedLength) {
+            return encodedLength;
+          }
+
+          @Override
+          public void encode(ByteBuffer src, ByteBuffer dst) {
+            dst.put(src);
+          }
+
+          @Override
+          public boolean decode(ByteBuffer src, ByteBuffer dst) {
+            dst.put(src);
+            return true;
+          }
+
+          @Override
+          public byte[] encode(byte[] decoded) {
+            return decoded;
+          }
+
+          @Override
+          public byte[] decode(byte[] encoded) {
+            return encoded;
+          }
+        };
+      }
+
+      if (documentProvider == null) {
+        documentProvider = (query, parseFunction) -> parseFunction.apply(query);
+      }
+
+      if (executor == null) {
+        executor = ForkJoinPool.commonPool();
       }
 
-      return new Froid(parser, mapper, codec, documentProvider);
+      Froid froid = new Froid(parser, mapper, codec, typeCodecs, documentProvider, planCacheSize, scanNodeQueries,
+          forkJoinPool, parallelThreshold, new KeyWriters(keyWriters, canonicalKeyOrder), keyFormat,
+          idCacheSize, nodeCacheSize, spliceNodeKeys, projectNodes, executor, listener, queryShapeRegistrySize);
+      froid.startWarmUp(warmUpQueries, warmUpRequests, warmUpIterations);
+      return froid;
     }
   }
 }
@@ -0,0 +1,122 @@
+package com.wayfair.javafroid;
+
+/**
+ * Receives what Froid does while handling requests: request durations, batch sizes, the time spent in each phase,
+ * cache hits and errors. Set with {@link Froid.Builder#setListener(FroidListener)}, every method defaults to doing
+ * nothing. Without a listener Froid does not read the clock and allocates nothing for instrumentation.
+ *
+ * <p>Methods are called on the threads doing the work, concurrently and inside the hot path, so they must be
+ * thread safe and cheap. See {@link com.wayfair.javafroid.metrics.FroidMetrics} for an implementation that
+ * aggregates into counters and histograms.
+ */
+public interface FroidListener {
+
+  /**
+   * A step of handling a request.
+   */
+  enum Phase {
+    /**
+     * Parsing a query with the graphql-java Parser, usually called by the DocumentProvider.
+     */
+    PARSE,
+    /**
+     * The DocumentProvider, including any parse it does.
+     */
+    DOCUMENT_PROVIDER,
+    /**
+     * Compiling a document, or scanning a query, into a node plan.
+     */
+    COMPILE,
+    /**
+     * Writing the keys of a representation.
+     */
+    SERIALIZE,
+    /**
+     * Reading decoded keys into an entity object.
+     */
+    DESERIALIZE,
+    /**
+     * The codec encoding keys.
+     */
+    ENCODE,
+    /**
+     * The codec decoding an id.
+     */
+    DECODE,
+    /**
+     * Building or parsing the base64 global id.
+     */
+    BASE64
+  }
+
+  enum Cache {
+    PLAN,
+    ID,
+    NODE
+  }
+
+  /**
+   * What kind of failure an error response reports.
+   */
+  enum ErrorCategory {
+    /**
+     * The query is not valid GraphQL.
+     */
+    INVALID_QUERY,
+    /**
+     * The request body, a representation or an id can't be read, e.g. malformed JSON or an id of another codec.
+     */
+    INVALID_INPUT,
+    /**
+     * Reading the request or writing the response failed.
+     */
+    IO,
+    /**
+     * Anything else.
+     */
+    INTERNAL
+  }
+
+  /**
+   * @param durationNanos The time from receiving a request to returning or writing its response
+   * @param failed        true when the response reports an error
+   */
+  default void onRequest(long durationNanos, boolean failed) {
+  }
+
+  /**
+   * @param representations The number of representations of an _entities request
+   */
+  default void onEntities(int representations) {
+  }
+
+  /**
+   * @param nodes The number of node fields of a node query
+   */
+  default void onNodes(int nodes) {
+  }
+
+  /**
+   * A phase that throws is not reported, the failure is reported by {@link #onError(ErrorCategory)}.
+   *
+   * @param phase         The phase
+   * @param durationNanos The time spent in it, for a single query, representation or id
+   */
+  default void onPhase(Phase phase, long durationNanos) {
+  }
+
+  /**
+   * @param cache The cache, only reported when enabled
+   * @param hit   true on a hit
+   */
+  default void onCache(Cache cache, boolean hit) {
+  }
+
+  /**
+   * Reported once for a failed request, or once per failed entry of a response that failed in part.
+   *
+   * @param category The kind of failure
+   */
+  default void onError(ErrorCategory category) {
+  }
+}
@@ -0,0 +1,239 @@
+package com.wayfair.javafroid;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Builds and parses global ids, base64(typeName + ":" + base64(id bytes)), over per thread scratch
+ * buffers. The "typeName:" prefix is encoded once per type, so building an id allocates nothing but the
+ * resulting String. The output and the accepted input are the same as {@link Froid#toGlobalId(String, String)}
+ * and {@link Froid#fromGlobalId(String)} with java.util.Base64.
+ */
+final class GlobalIds {
+
+  private static final byte[] ALPHABET =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+  private static final int[] VALUES = new int[256];
+  private static final byte PAD = '=';
+  private static final byte SEPARATOR = ':';
+  private static final int MAX_CACHED_TYPES = 1024;
+
+  static final int INVALID = -1;
+
+  static {
+    Arrays.fill(VALUES, -1);
+    for (int i = 0; i < ALPHABET.length; i++) {
+      VALUES[ALPHABET[i]] = i;
+    }
+  }
+
+  private final BoundedCache<String, byte[]> prefixes = new BoundedCache<>(MAX_CACHED_TYPES);
+  private final ThreadLocal<Parsed> scratch = ThreadLocal.withInitial(Parsed::new);
+
+  /**
+   * Parts of a decoded global id, held in per thread buffers. Only valid until the next call to
+   * {@link #decode(String)} on the same thread.
+   */
+  static final class Parsed {
+
+    private byte[] plain = new byte[128];
+    private byte[] id = new byte[64];
+    private int idLength;
+    private byte[] typeNameBytes = new byte[0];
+    private String typeName;
+
+    String typeName() {
+      return typeName;
+    }
+
+    byte[] id() {
+      return id;
+    }
+
+    int idLength() {
+      return idLength;
+    }
+
+    private byte[] plain(int length) {
+      if (plain.length < length) {
+        plain = new byte[length];
+      }
+      return plain;
+    }
+
+    private byte[] id(int length) {
+      if (id.length < length) {
+        id = new byte[length];
+      }
+      return id;
+    }
+
+    /**
+     * Consecutive ids mostly share a type, so the last type name String is reused when its bytes match.
+     */
+    private void typeName(byte[] bytes, int length) {
+      if (typeName == null || length != typeNameBytes.length || !rangeEquals(bytes, typeNameBytes, length)) {
+        typeNameBytes = Arrays.copyOf(bytes, length);
+        typeName = new String(typeNameBytes, StandardCharsets.UTF_8);
+      }
+    }
+  }
+
+  /**
+   * Build a global id.
+   *
+   * @param typeName The __typename
+   * @param id       The id bytes, i.e. the encoded keys
+   * @param offset   The offset of the id bytes
+   * @param length   The number of id bytes
+   * @return The global id
+   */
+  String encode(String typeName, byte[] id, int offset, int length) {
+    byte[] prefix = prefixes.get(typeName, GlobalIds::prefix);
+    Parsed buffers = scratch.get();
+
+    int plainLength = prefix.length + encodedLength(length);
+    byte[] plain = buffers.plain(plainLength + encodedLength(plainLength));
+    System.arraycopy(prefix, 0, plain, 0, prefix.length);
+    encode(id, offset, length, plain, prefix.length);
+    int outLength = encode(plain, 0, plainLength, plain, plainLength);
+
+    return new String(plain, plainLength, outLength, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Parse a global id. Malformed ids are reported by the return value rather than an exception, so a flood of
+   * junk ids costs no more than decoding them.
+   *
+   * @param globalId The global id
+   * @return The per thread parts of the id, or null when the id is not valid base64 or has no type
+   */
+  Parsed decode(String globalId) {
+    Parsed parsed = scratch.get();
+    int length = globalId.length();
+    byte[] plain = parsed.plain(length * 2);
+    for (int i = 0; i < length; i++) {
+      char c = globalId.charAt(i);
+      // anything outside latin-1 is not base64 either, map it to a byte that fails decoding
+      plain[length + i] = c < 256 ? (byte) c : (byte) '?';
+    }
+
+    int plainLength = decode(plain, length, length * 2, plain, 0);
+    if (plainLength == INVALID) {
+      return null;
+    }
+    int separator = -1;
+    for (int i = 0; i < plainLength; i++) {
+      if (plain[i] == SEPARATOR) {
+        separator = i;
+        break;
+      }
+    }
+    if (separator < 0) {
+      return null;
+    }
+
+    byte[] id = parsed.id(decodedMaxLength(plainLength - separator - 1));
+    int idLength = decode(plain, separator + 1, plainLength, id, 0);
+    if (idLength == INVALID) {
+      return null;
+    }
+    parsed.typeName(plain, separator);
+    parsed.idLength = idLength;
+    return parsed;
+  }
+
+  private static byte[] prefix(String typeName) {
+    byte[] type = typeName.getBytes(StandardCharsets.UTF_8);
+    byte[] prefix = Arrays.copyOf(type, type.length + 1);
+    prefix[type.length] = SEPARATOR;
+    return prefix;
+  }
+
+  static int encodedLength(int length) {
+    return (length + 2) / 3 * 4;
+  }
+
+  static int decodedMaxLength(int length) {
+    return (length + 3) / 4 * 3;
+  }
+
+  /**
+   * Base64 encode with padding.
+   *
+   * @return The number of bytes written
+   */
+  static int encode(byte[] src, int from, int length, byte[] dst, int offset) {
+    int end = from + length;
+    int d = offset;
+    int s = from;
+    for (; s + 3 <= end; s += 3) {
+      int bits = (src[s] & 0xff) << 16 | (src[s + 1] & 0xff) << 8 | (src[s + 2] & 0xff);
+      dst[d++] = ALPHABET[bits >>> 18];
+      dst[d++] = ALPHABET[(bits >>> 12) & 0x3f];
+      dst[d++] = ALPHABET[(bits >>> 6) & 0x3f];
+      dst[d++] = ALPHABET[bits & 0x3f];
+    }
+    if (s < end) {
+      int bits = (src[s] & 0xff) << 16 | (s + 1 < end ? (src[s + 1] & 0xff) << 8 : 0);
+      dst[d++] = ALPHABET[bits >>> 18];
+      dst[d++] = ALPHABET[(bits >>> 12) & 0x3f];
+      dst[d++] = s + 1 < end ? ALPHABET[(bits >>> 6) & 0x3f] : PAD;
+      dst[d++] = PAD;
+    }
+    return d - offset;
+  }
+
+  /**
+   * Base64 decode, accepting exactly what java.util.Base64.getDecoder() accepts: padding is optional,
+   * but when present it must complete the last unit and end the input.
+   *
+   * @return The number of bytes written, or {@link #INVALID} when the input is not valid base64
+   */
+  static int decode(byte[] src, int from, int to, byte[] dst, int offset) {
+    int d = offset;
+    int bits = 0;
+    int count = 0;
+    int s = from;
+    while (s < to) {
+      int b = src[s++] & 0xff;
+      int value = VALUES[b];
+      if (value < 0) {
+        if (b == PAD && (count == 3 || (count == 2 && s < to && src[s++] == PAD))) {
+          if (s < to) {
+            return INVALID;
+          }
+          break;
+        }
+        return INVALID;
+      }
+      bits = bits << 6 | value;
+      if (++count == 4) {
+        dst[d++] = (byte) (bits >> 16);
+        dst[d++] = (byte) (bits >> 8);
+        dst[d++] = (byte) bits;
+        bits = 0;
+        count = 0;
+      }
+    }
+
+    if (count == 1) {
+      return INVALID;
+    } else if (count == 2) {
+      dst[d++] = (byte) (bits >> 4);
+    } else if (count == 3) {
+      dst[d++] = (byte) (bits >> 10);
+      dst[d++] = (byte) (bits >> 2);
+    }
+    return d - offset;
+  }
+
+  private static boolean rangeEquals(byte[] a, byte[] b, int length) {
+    for (int i = 0; i < length; i++) {
+      if (a[i] != b[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,91 @@
+package com.wayfair.javafroid;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * A per thread buffer and generator that KeyWriters write representation keys into.
+ * It remembers the writer of the last __typename, so a batch of the same type resolves its writer once.
+ */
+final class KeyBuffer {
+
+  private final ByteArrayBuilder bytes = new ByteArrayBuilder();
+  private final ObjectMapper mapper;
+  private JsonGenerator generator;
+  private String lastType;
+  private KeyWriter lastWriter;
+
+  KeyBuffer(ObjectMapper mapper) {
+    this.mapper = mapper;
+    this.generator = createGenerator();
+  }
+
+  KeyWriter writer(String typeName, KeyWriters writers, Map<String, Object> representation) {
+    if (!typeName.equals(lastType)) {
+      lastWriter = writers.get(typeName, representation::keySet);
+      lastType = typeName;
+    }
+    return lastWriter;
+  }
+
+  /**
+   * @return A view of the written key JSON, valid until the next write on this thread
+   */
+  ByteBuffer write(KeyWriter writer, Map<String, Object> representation) throws IOException {
+    bytes.reset();
+    try {
+      writer.write(representation, generator);
+      generator.flush();
+    } catch (IOException | RuntimeException e) {
+      // the generator is left inside the failed object, start over with a fresh one
+      generator = createGenerator();
+      throw e;
+    }
+    return view(bytes);
+  }
+
+  /**
+   * Write keys in the binary format, see {@link BinaryKeys#write(KeyWriter, boolean, Map, ByteArrayBuilder)}.
+   *
+   * @return A view of the written keys, or null when a value has no binary form
+   */
+  ByteBuffer writeBinary(KeyWriter writer, boolean positional, Map<String, Object> representation) {
+    bytes.reset();
+    return BinaryKeys.write(writer, positional, representation, bytes) ? view(bytes) : null;
+  }
+
+  /**
+   * Write keys in the named binary format, see {@link BinaryKeys#write(Map, ByteArrayBuilder)}.
+   *
+   * @return A view of the written keys, or null when a value has no binary form
+   */
+  ByteBuffer writeBinary(Map<?, Object> keys) {
+    bytes.reset();
+    return BinaryKeys.write(keys, bytes) ? view(bytes) : null;
+  }
+
+  /**
+   * Key JSON mostly fits the first segment of the builder, in which case it is wrapped without a copy.
+   */
+  static ByteBuffer view(ByteArrayBuilder bytes) {
+    if (bytes.size() == bytes.getCurrentSegmentLength()) {
+      return ByteBuffer.wrap(bytes.getCurrentSegment(), 0, bytes.size());
+    }
+    return ByteBuffer.wrap(bytes.toByteArray());
+  }
+
+  private JsonGenerator createGenerator() {
+    try {
+      JsonGenerator keyGenerator = mapper.writer().createGenerator(bytes);
+      keyGenerator.setRootValueSeparator(null);
+      return keyGenerator;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,21 @@
+package com.wayfair.javafroid;
+
+/**
+ * How the keys of a representation are serialized into the id, before the Codec is applied.
+ * Ids of either format are decoded regardless of the configured format, so a service can switch formats
+ * without invalidating the ids it issued before.
+ */
+public enum KeyFormat {
+
+  /**
+   * The keys as a JSON object, e.g. {"bookId":1}.
+   */
+  JSON,
+
+  /**
+   * A versioned binary form of the keys, with type tagged values, varint integers and length prefixed
+   * strings. Types with key fields declared on the builder omit the field names. Keys with values that have
+   * no exact binary form are still written as JSON.
+   */
+  BINARY
+}
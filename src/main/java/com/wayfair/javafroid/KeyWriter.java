@@ -0,0 +1,153 @@
+package com.wayfair.javafroid;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Writes the key fields of one __typename as a JSON object, always in the same order.
+ * Field names are encoded once when the writer is compiled, and common value types are written
+ * without going through the ObjectMapper's serializer lookup.
+ */
+final class KeyWriter {
+
+  private static final String TYPE_NAME = "__typename";
+  private static final int FNV_OFFSET = 0x811c9dc5;
+  private static final int FNV_PRIME = 0x01000193;
+
+  private final String[] fields;
+  private final SerializedString[] names;
+  private final int fingerprint;
+
+  KeyWriter(String... fields) {
+    this.fields = fields.clone();
+    this.names = new SerializedString[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      if (fields[i].equals(TYPE_NAME)) {
+        throw new IllegalArgumentException("__typename is not a key field");
+      }
+      names[i] = new SerializedString(fields[i]);
+    }
+    this.fingerprint = fingerprint(this.fields);
+  }
+
+  /**
+   * A writer emitting the fields in canonical (lexicographic) order.
+   *
+   * @param fields The key fields
+   * @return The writer
+   */
+  static KeyWriter sorted(Collection<String> fields) {
+    String[] sorted = fields.stream().filter(it -> !it.equals(TYPE_NAME)).toArray(String[]::new);
+    Arrays.sort(sorted);
+    return new KeyWriter(sorted);
+  }
+
+  int size() {
+    return fields.length;
+  }
+
+  SerializableString name(int index) {
+    return names[index];
+  }
+
+  String field(int index) {
+    return fields[index];
+  }
+
+  /**
+   * @return A 32-bit FNV-1a hash of the key fields in order, each followed by a NUL that can't be part of a
+   *     GraphQL name
+   */
+  int fingerprint() {
+    return fingerprint;
+  }
+
+  private static int fingerprint(String[] fields) {
+    int hash = FNV_OFFSET;
+    for (String field : fields) {
+      for (int i = 0; i < field.length(); i++) {
+        char c = field.charAt(i);
+        hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+      }
+      // the NUL separator
+      hash *= FNV_PRIME;
+    }
+    return hash;
+  }
+
+  /**
+   * @param representation The representation object
+   * @return true when the representation has exactly this writer's key fields, besides __typename
+   */
+  boolean matches(Map<String, Object> representation) {
+    int expected = fields.length + (representation.containsKey(TYPE_NAME) ? 1 : 0);
+    if (representation.size() != expected) {
+      return false;
+    }
+    for (String field : fields) {
+      if (!representation.containsKey(field)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Map this writer's fields onto the fields captured by a RepresentationReader.
+   *
+   * @param captured The captured field names
+   * @param size     The number of captured fields
+   * @param order    Receives, for each key field in order, the index of the captured field
+   * @return false when the captured fields are not exactly this writer's key fields
+   */
+  boolean order(String[] captured, int size, int[] order) {
+    if (size != fields.length) {
+      return false;
+    }
+    for (int i = 0; i < fields.length; i++) {
+      int found = -1;
+      for (int j = 0; j < size; j++) {
+        if (captured[j].equals(fields[i])) {
+          found = j;
+          break;
+        }
+      }
+      if (found < 0) {
+        return false;
+      }
+      order[i] = found;
+    }
+    return true;
+  }
+
+  void write(Map<String, Object> representation, JsonGenerator generator) throws IOException {
+    generator.writeStartObject();
+    for (int i = 0; i < fields.length; i++) {
+      generator.writeFieldName(names[i]);
+      writeValue(representation.get(fields[i]), generator);
+    }
+    generator.writeEndObject();
+  }
+
+  private static void writeValue(Object value, JsonGenerator generator) throws IOException {
+    if (value instanceof String) {
+      generator.writeString((String) value);
+    } else if (value instanceof Integer) {
+      generator.writeNumber((Integer) value);
+    } else if (value instanceof Long) {
+      generator.writeNumber((Long) value);
+    } else if (value instanceof Boolean) {
+      generator.writeBoolean((Boolean) value);
+    } else if (value == null) {
+      generator.writeNull();
+    } else {
+      generator.writeObject(value);
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package com.wayfair.javafroid;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * The KeyWriter for each __typename: either configured on the builder, or, with canonical key order,
+ * compiled from the first representation seen for the type.
+ */
+final class KeyWriters {
+
+  private static final int MAX_LEARNED_TYPES = 1024;
+
+  private final Map<String, KeyWriter> configured;
+  private final BoundedCache<String, KeyWriter> learned;
+
+  KeyWriters(Map<String, KeyWriter> configured, boolean canonical) {
+    this.configured = new HashMap<>(configured);
+    this.learned = canonical ? new BoundedCache<>(MAX_LEARNED_TYPES) : null;
+  }
+
+  boolean isCanonical() {
+    return learned != null;
+  }
+
+  /**
+   * @param typeName The __typename
+   * @return The writer declared on the builder, or null
+   */
+  KeyWriter declared(String typeName) {
+    return configured.get(typeName);
+  }
+
+  /**
+   * @param typeName The __typename
+   * @param fields   The key fields to learn from when the type has no writer yet
+   * @return The writer, or null when the type is not configured and key order is not canonical
+   */
+  KeyWriter get(String typeName, Supplier<Collection<String>> fields) {
+    KeyWriter writer = configured.get(typeName);
+    if (writer != null || learned == null) {
+      return writer;
+    }
+    return learned.get(typeName, type -> KeyWriter.sorted(fields.get()));
+  }
+}
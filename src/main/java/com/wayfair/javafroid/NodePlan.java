@@ -0,0 +1,155 @@
+package com.wayfair.javafroid;
+
+import graphql.language.Argument;
+import graphql.language.Field;
+import graphql.language.Node;
+import graphql.language.StringValue;
+import graphql.language.VariableReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compiled form of a node query. Walking the parsed document once yields a flat list of
+ * (response name, id) entries, where the id is either a literal or the name of a GraphQL variable,
+ * and optionally the {@link NodeProjection} of each node field's selection set.
+ * Plans are immutable and safe to share between threads, so they can be cached per query text.
+ */
+final class NodePlan {
+
+  private static final String NODE = "node";
+  private static final String ID = "id";
+
+  private final String[] responseNames;
+  private final String[] literalIds;
+  private final String[] variableNames;
+  private final NodeProjection[] projections;
+
+  NodePlan(String[] responseNames, String[] literalIds, String[] variableNames, NodeProjection[] projections) {
+    this.responseNames = responseNames;
+    this.literalIds = literalIds;
+    this.variableNames = variableNames;
+    this.projections = projections;
+  }
+
+  /**
+   * Compile a plan from the root node of a parsed GraphQL query.
+   *
+   * @param root The root node of the parsed GraphQL query.
+   * @return The plan
+   */
+  static NodePlan compile(Node root) {
+    return compile(root, false);
+  }
+
+  /**
+   * Compile a plan from the root node of a parsed GraphQL query.
+   *
+   * @param root    The root node of the parsed GraphQL query.
+   * @param project true to compile the selection set of each node field into a projection
+   * @return The plan
+   */
+  static NodePlan compile(Node root, boolean project) {
+    Builder builder = new Builder();
+    visitFields(root, builder, project);
+    return builder.build();
+  }
+
+  int size() {
+    return responseNames.length;
+  }
+
+  String responseName(int index) {
+    return responseNames[index];
+  }
+
+  /**
+   * @param index The plan entry.
+   * @return true when the entity object of this entry is projected
+   */
+  boolean isProjected(int index) {
+    return projections[index] != null;
+  }
+
+  /**
+   * @param index The plan entry.
+   * @param node  The decoded entity object
+   * @return The fields the node field selects, or the entity object itself without a projection
+   */
+  Map<String, Object> project(int index, Map<String, Object> node) {
+    return projections[index] != null ? projections[index].apply(node) : node;
+  }
+
+  /**
+   * The ID value to decode either resides in Graphql variables or passed directly to the node() field.
+   *
+   * @param index     The plan entry.
+   * @param variables The GraphQL variables passed as part of the request.
+   * @return The id value
+   */
+  String idValue(int index, Map<String, Object> variables) {
+    String literal = literalIds[index];
+    return literal != null ? literal : variables.get(variableNames[index]).toString();
+  }
+
+  /**
+   * Visit each node in the document as there may be multiple root node queries.
+   *
+   * @param node    The current node in the tree
+   * @param builder Collects the plan entries
+   * @param project true to compile projections
+   */
+  private static void visitFields(Node node, Builder builder, boolean project) {
+    if (node instanceof Field) {
+      Field field = (Field) node;
+      // if this is a node field, and it has an id argument take it.
+      if (field.getName().equals(NODE)) {
+        for (Argument argument : field.getArguments()) {
+          if (argument.getName().equals(ID)) {
+            String nodeAlias = field.getAlias();
+            String responseName = (nodeAlias != null && !nodeAlias.isEmpty()) ? nodeAlias : field.getName();
+            NodeProjection projection = project ? NodeProjection.compile(field.getSelectionSet()) : null;
+            if (argument.getValue() instanceof VariableReference) {
+              builder.add(responseName, null, ((VariableReference) argument.getValue()).getName(), projection);
+            } else if (argument.getValue() instanceof StringValue) {
+              builder.add(responseName, ((StringValue) argument.getValue()).getValue(), null, projection);
+            }
+            break;
+          }
+        }
+      }
+    } else {
+      for (Node child : (List<Node>) node.getChildren()) {
+        visitFields(child, builder, project);
+      }
+    }
+  }
+
+  static class Builder {
+
+    private final List<String> responseNames = new ArrayList<>();
+    private final List<String> literalIds = new ArrayList<>();
+    private final List<String> variableNames = new ArrayList<>();
+    private final List<NodeProjection> projections = new ArrayList<>();
+
+    Builder add(String responseName, String literalId, String variableName) {
+      return add(responseName, literalId, variableName, null);
+    }
+
+    Builder add(String responseName, String literalId, String variableName, NodeProjection projection) {
+      responseNames.add(responseName);
+      literalIds.add(literalId);
+      variableNames.add(variableName);
+      projections.add(projection);
+      return this;
+    }
+
+    NodePlan build() {
+      return new NodePlan(
+          responseNames.toArray(new String[0]),
+          literalIds.toArray(new String[0]),
+          variableNames.toArray(new String[0]),
+          projections.toArray(new NodeProjection[0]));
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package com.wayfair.javafroid;
+
+import graphql.language.Field;
+import graphql.language.InlineFragment;
+import graphql.language.Selection;
+import graphql.language.SelectionSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The fields a node field selects, compiled from its selection set: direct fields, and fields of inline
+ * fragments whose type condition matches the resolved __typename. Key fields come out under their alias,
+ * in the order they are selected, and fields the selection does not ask for are dropped.
+ *
+ * <p>Without the schema a type condition can only be matched by name, so a fragment applies when its
+ * condition is the __typename or the Node interface. Selections that can't be resolved from the query
+ * alone, fragment spreads and directives, are not projected at all. Nested selections of object valued
+ * keys are not projected either, the whole value is returned.
+ */
+final class NodeProjection {
+
+  private static final String TYPE_NAME = "__typename";
+  private static final String NODE_INTERFACE = "Node";
+  private static final String[] ALWAYS = new String[0];
+
+  private final String[] responseNames;
+  private final String[] fieldNames;
+  // the type conditions of the enclosing inline fragments, all of which must match
+  private final String[][] conditions;
+
+  private NodeProjection(List<String> responseNames, List<String> fieldNames, List<String[]> conditions) {
+    this.responseNames = responseNames.toArray(new String[0]);
+    this.fieldNames = fieldNames.toArray(new String[0]);
+    this.conditions = conditions.toArray(new String[0][]);
+  }
+
+  /**
+   * @param selectionSet The selection set of a node field
+   * @return The projection, or null when the selection can't be projected
+   */
+  static NodeProjection compile(SelectionSet selectionSet) {
+    if (selectionSet == null) {
+      return null;
+    }
+    List<String> responseNames = new ArrayList<>();
+    List<String> fieldNames = new ArrayList<>();
+    List<String[]> conditions = new ArrayList<>();
+    if (!collect(selectionSet, ALWAYS, responseNames, fieldNames, conditions)) {
+      return null;
+    }
+    return new NodeProjection(responseNames, fieldNames, conditions);
+  }
+
+  private static boolean collect(SelectionSet selectionSet, String[] enclosing, List<String> responseNames,
+      List<String> fieldNames, List<String[]> conditions) {
+    for (Selection<?> selection : selectionSet.getSelections()) {
+      if (selection instanceof Field) {
+        Field field = (Field) selection;
+        if (!field.getDirectives().isEmpty()) {
+          return false;
+        }
+        String alias = field.getAlias();
+        responseNames.add(alias != null && !alias.isEmpty() ? alias : field.getName());
+        fieldNames.add(field.getName());
+        conditions.add(enclosing);
+      } else if (selection instanceof InlineFragment) {
+        InlineFragment fragment = (InlineFragment) selection;
+        if (!fragment.getDirectives().isEmpty()) {
+          return false;
+        }
+        String[] nested = enclosing;
+        if (fragment.getTypeCondition() != null) {
+          nested = Arrays.copyOf(enclosing, enclosing.length + 1);
+          nested[enclosing.length] = fragment.getTypeCondition().getName();
+        }
+        if (!collect(fragment.getSelectionSet(), nested, responseNames, fieldNames, conditions)) {
+          return false;
+        }
+      } else {
+        // a fragment spread, its definition is not part of the compiled operation
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param node The decoded entity object, with __typename and id
+   * @return A new entity object with only the selected fields
+   */
+  Map<String, Object> apply(Map<String, Object> node) {
+    Object typeName = node.get(TYPE_NAME);
+    Map<String, Object> projected = new LinkedHashMap<>();
+    for (int i = 0; i < fieldNames.length; i++) {
+      if (matches(conditions[i], typeName) && !projected.containsKey(responseNames[i])
+          && node.containsKey(fieldNames[i])) {
+        projected.put(responseNames[i], node.get(fieldNames[i]));
+      }
+    }
+    return projected;
+  }
+
+  private static boolean matches(String[] conditions, Object typeName) {
+    for (String condition : conditions) {
+      if (!condition.equals(typeName) && !condition.equals(NODE_INTERFACE)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,413 @@
+package com.wayfair.javafroid;
+
+/**
+ * Reads node queries straight from the query characters instead of building a graphql-java Document.
+ * The federation gateway generates these queries from a small grammar, e.g.
+ * <pre>
+ * query x__node_relay_service__0($nodeId:ID!) { a:node(id:$nodeId){...} }
+ * </pre>
+ * Only that grammar is understood: a single anonymous or named query whose top level fields take
+ * variable or plain string arguments. Variable definitions, other arguments and sub selections are
+ * checked token by token without being recorded, so the scanner never accepts a query the Parser
+ * rejects. Anything else (comments, fragments at the top level, fragment spreads, directives, escaped
+ * or block strings, trailing definitions, very deep nesting) makes {@link #scan(String)} return null so
+ * the caller can fall back to the full Parser.
+ */
+final class NodeQueryScanner {
+
+  private static final String QUERY = "query";
+  private static final String NODE = "node";
+  private static final String ID = "id";
+  private static final String ON = "on";
+  private static final String SPREAD = "...";
+  private static final int MAX_DEPTH = 64;
+
+  private final String query;
+  private final NodePlan.Builder plan = new NodePlan.Builder();
+  private int pos;
+
+  private NodeQueryScanner(String query) {
+    this.query = query;
+  }
+
+  /**
+   * Compile a plan from the query text.
+   *
+   * @param query The GraphQL query text.
+   * @return The plan, or null when the query falls outside the supported grammar
+   */
+  static NodePlan scan(String query) {
+    if (query == null) {
+      return null;
+    }
+    NodeQueryScanner scanner = new NodeQueryScanner(query);
+    return scanner.document() ? scanner.plan.build() : null;
+  }
+
+  private boolean document() {
+    skipIgnored();
+    if (peek() != '{') {
+      int start = pos;
+      if (!name() || !query.regionMatches(start, QUERY, 0, pos - start) || pos - start != QUERY.length()) {
+        return false;
+      }
+      skipIgnored();
+      if (peek() != '{' && peek() != '(' && !name()) {
+        return false;
+      }
+      skipIgnored();
+      if (peek() == '(' && !variableDefinitions()) {
+        return false;
+      }
+      skipIgnored();
+    }
+    if (!selectionSet(0)) {
+      return false;
+    }
+    skipIgnored();
+    return pos == query.length();
+  }
+
+  /**
+   * A selection set. Only the top level one, at depth 0, adds its node fields to the plan.
+   */
+  private boolean selectionSet(int depth) {
+    if (depth > MAX_DEPTH || !consume('{')) {
+      return false;
+    }
+    skipIgnored();
+    // an empty selection set is a syntax error, leave it to the Parser to report it.
+    if (peek() == '}') {
+      return false;
+    }
+    while (peek() != '}') {
+      if (depth > 0 && query.startsWith(SPREAD, pos)) {
+        if (!inlineFragment(depth)) {
+          return false;
+        }
+      } else if (!field(depth)) {
+        return false;
+      }
+      skipIgnored();
+    }
+    pos++;
+    return true;
+  }
+
+  private boolean inlineFragment(int depth) {
+    pos += SPREAD.length();
+    skipIgnored();
+    if (peek() != '{') {
+      // a fragment spread needs a fragment definition, which the grammar leaves out
+      int start = pos;
+      if (!name() || pos - start != ON.length() || !query.startsWith(ON, start)) {
+        return false;
+      }
+      skipIgnored();
+      if (!name()) {
+        return false;
+      }
+      skipIgnored();
+    }
+    return selectionSet(depth + 1);
+  }
+
+  private boolean field(int depth) {
+    int start = pos;
+    if (!name()) {
+      return false;
+    }
+    String responseName = query.substring(start, pos);
+    String fieldName = responseName;
+    skipIgnored();
+    if (peek() == ':') {
+      pos++;
+      skipIgnored();
+      start = pos;
+      if (!name()) {
+        return false;
+      }
+      fieldName = query.substring(start, pos);
+      skipIgnored();
+    }
+
+    if (peek() == '(') {
+      if (depth == 0 && fieldName.equals(NODE)) {
+        if (!nodeArguments(responseName)) {
+          return false;
+        }
+      } else if (!arguments(depth)) {
+        return false;
+      }
+      skipIgnored();
+    }
+
+    return peek() != '{' || selectionSet(depth + 1);
+  }
+
+  private boolean nodeArguments(String responseName) {
+    pos++;
+    skipIgnored();
+    if (peek() == ')') {
+      return false;
+    }
+    boolean found = false;
+    while (peek() != ')') {
+      int start = pos;
+      if (!name()) {
+        return false;
+      }
+      boolean isId = !found && pos - start == ID.length() && query.startsWith(ID, start);
+      skipIgnored();
+      if (!consume(':')) {
+        return false;
+      }
+      skipIgnored();
+
+      String variableName = null;
+      String literalId = null;
+      if (!isId) {
+        if (!value(false, 1)) {
+          return false;
+        }
+      } else if (peek() == '$') {
+        pos++;
+        start = pos;
+        if (!name()) {
+          return false;
+        }
+        variableName = query.substring(start, pos);
+      } else if (peek() == '"') {
+        start = pos + 1;
+        if (!string()) {
+          return false;
+        }
+        literalId = query.substring(start, pos - 1);
+      } else {
+        return false;
+      }
+
+      if (isId) {
+        plan.add(responseName, literalId, variableName);
+        found = true;
+      }
+      skipIgnored();
+    }
+    pos++;
+    return true;
+  }
+
+  private boolean variableDefinitions() {
+    pos++;
+    skipIgnored();
+    if (peek() == ')') {
+      return false;
+    }
+    while (peek() != ')') {
+      if (!consume('$') || !name()) {
+        return false;
+      }
+      skipIgnored();
+      if (!consume(':')) {
+        return false;
+      }
+      skipIgnored();
+      if (!type(0)) {
+        return false;
+      }
+      skipIgnored();
+      if (peek() == '=') {
+        pos++;
+        skipIgnored();
+        if (!value(true, 0)) {
+          return false;
+        }
+        skipIgnored();
+      }
+    }
+    pos++;
+    return true;
+  }
+
+  private boolean type(int depth) {
+    if (peek() == '[') {
+      pos++;
+      skipIgnored();
+      if (depth >= MAX_DEPTH || !type(depth + 1)) {
+        return false;
+      }
+      skipIgnored();
+      if (!consume(']')) {
+        return false;
+      }
+    } else if (!name()) {
+      return false;
+    }
+    skipIgnored();
+    consume('!');
+    return true;
+  }
+
+  private boolean arguments(int depth) {
+    pos++;
+    skipIgnored();
+    if (peek() == ')') {
+      return false;
+    }
+    while (peek() != ')') {
+      if (!name()) {
+        return false;
+      }
+      skipIgnored();
+      if (!consume(':')) {
+        return false;
+      }
+      skipIgnored();
+      if (!value(false, depth + 1)) {
+        return false;
+      }
+      skipIgnored();
+    }
+    pos++;
+    return true;
+  }
+
+  /**
+   * Consume a value: a variable unless constant, a number, a string, a name (booleans, null and enum values),
+   * a list or an object.
+   */
+  private boolean value(boolean constant, int depth) {
+    char c = peek();
+    if (c == '$') {
+      pos++;
+      return !constant && name();
+    }
+    if (c == '"') {
+      return string();
+    }
+    if (c == '-' || isDigit(c)) {
+      return number();
+    }
+    if (c == '[' || c == '{') {
+      if (depth >= MAX_DEPTH) {
+        return false;
+      }
+      pos++;
+      skipIgnored();
+      char close = c == '[' ? ']' : '}';
+      while (peek() != close) {
+        if (c == '{') {
+          if (!name()) {
+            return false;
+          }
+          skipIgnored();
+          if (!consume(':')) {
+            return false;
+          }
+          skipIgnored();
+        }
+        if (!value(constant, depth + 1)) {
+          return false;
+        }
+        skipIgnored();
+      }
+      pos++;
+      return true;
+    }
+    return name();
+  }
+
+  private boolean number() {
+    consume('-');
+    if (!consume('0') && !digits()) {
+      return false;
+    }
+    if (consume('.') && !digits()) {
+      return false;
+    }
+    if (consume('e') || consume('E')) {
+      if (!consume('+')) {
+        consume('-');
+      }
+      if (!digits()) {
+        return false;
+      }
+    }
+    // e.g. 01, 1.2.3 or 1x
+    char c = peek();
+    return !isDigit(c) && c != '.' && !isNameStart(c);
+  }
+
+  private boolean digits() {
+    int start = pos;
+    while (isDigit(peek())) {
+      pos++;
+    }
+    return pos > start;
+  }
+
+  /**
+   * Consume a single line string without escapes. Block strings and escapes need decoding, so are left to the Parser.
+   */
+  private boolean string() {
+    if (query.startsWith("\"\"\"", pos)) {
+      return false;
+    }
+    pos++;
+    while (pos < query.length()) {
+      char c = query.charAt(pos++);
+      if (c == '"') {
+        return true;
+      }
+      if (c == '\\' || c == '\n' || c == '\r') {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  private boolean name() {
+    if (pos >= query.length() || !isNameStart(query.charAt(pos))) {
+      return false;
+    }
+    pos++;
+    while (pos < query.length() && isNameContinue(query.charAt(pos))) {
+      pos++;
+    }
+    return true;
+  }
+
+  private void skipIgnored() {
+    while (pos < query.length()) {
+      char c = query.charAt(pos);
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r' && c != ',' && c != '\uFEFF') {
+        return;
+      }
+      pos++;
+    }
+  }
+
+  private boolean consume(char expected) {
+    if (peek() != expected) {
+      return false;
+    }
+    pos++;
+    return true;
+  }
+
+  private char peek() {
+    return pos < query.length() ? query.charAt(pos) : 0;
+  }
+
+  private static boolean isNameStart(char c) {
+    return c == '_' || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+  }
+
+  private static boolean isNameContinue(char c) {
+    return isNameStart(c) || isDigit(c);
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+}
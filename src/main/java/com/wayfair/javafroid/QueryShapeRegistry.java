@@ -0,0 +1,125 @@
+package com.wayfair.javafroid;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per query text statistics, held in a {@link BoundedCache} so the least called shapes are evicted first once
+ * it is full. Shapes are keyed by a 64-bit hash of the text rather than the text itself, so a lookup never
+ * compares long query strings, and each shape keeps the first text it saw as its sample. Counters are
+ * LongAdders, so recording a call takes no lock.
+ */
+final class QueryShapeRegistry {
+
+  /**
+   * What a handler learned about a request, filled in as it goes. Sizes stay -1 when unknown.
+   */
+  static final class Call {
+
+    String query;
+    String operationName;
+    int representations = -1;
+    int nodes = -1;
+  }
+
+  private static final class Shape {
+
+    private final String query;
+    private volatile String operationName;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder totalLatency = new LongAdder();
+    private final LongAccumulator maxLatency = new LongAccumulator(Math::max, 0);
+    private final LongAdder nodeCalls = new LongAdder();
+    private final LongAdder totalNodes = new LongAdder();
+    private final LongAccumulator maxNodes = new LongAccumulator(Math::max, 0);
+    private final LongAdder entitiesCalls = new LongAdder();
+    private final LongAdder totalRepresentations = new LongAdder();
+    private final LongAccumulator maxRepresentations = new LongAccumulator(Math::max, 0);
+
+    Shape(String query) {
+      this.query = query;
+    }
+
+    void record(Call call, long latencyNanos, boolean failed) {
+      if (call.operationName != null) {
+        operationName = call.operationName;
+      }
+      calls.increment();
+      if (failed) {
+        failures.increment();
+      }
+      totalLatency.add(latencyNanos);
+      maxLatency.accumulate(latencyNanos);
+      if (call.nodes >= 0) {
+        nodeCalls.increment();
+        totalNodes.add(call.nodes);
+        maxNodes.accumulate(call.nodes);
+      }
+      if (call.representations >= 0) {
+        entitiesCalls.increment();
+        totalRepresentations.add(call.representations);
+        maxRepresentations.accumulate(call.representations);
+      }
+    }
+
+    QueryShapeStats snapshot() {
+      return new QueryShapeStats(query, operationName, calls.sum(), failures.sum(), totalLatency.sum(),
+          maxLatency.get(), nodeCalls.sum(), totalNodes.sum(), maxNodes.get(), entitiesCalls.sum(),
+          totalRepresentations.sum(), maxRepresentations.get());
+    }
+  }
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final BoundedCache<Long, Shape> shapes;
+
+  /**
+   * @param maxShapes The maximum number of distinct query texts to track, 0 to disable
+   */
+  QueryShapeRegistry(int maxShapes) {
+    this.shapes = new BoundedCache<>(maxShapes);
+  }
+
+  boolean isEnabled() {
+    return shapes.isEnabled();
+  }
+
+  void record(Call call, long latencyNanos, boolean failed) {
+    if (call.query == null) {
+      return;
+    }
+    Long key = hash(call.query);
+    Shape shape = shapes.getIfPresent(key);
+    if (shape == null) {
+      shape = shapes.put(key, new Shape(call.query));
+    }
+    shape.record(call, latencyNanos, failed);
+  }
+
+  /**
+   * FNV-1a over the chars of the query text.
+   */
+  private static long hash(String query) {
+    long hash = FNV_OFFSET;
+    for (int i = 0; i < query.length(); i++) {
+      hash = (hash ^ query.charAt(i)) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  /**
+   * @param limit The maximum number of shapes to return
+   * @return The most called shapes, most called first
+   */
+  List<QueryShapeStats> top(int limit) {
+    List<QueryShapeStats> snapshot = new ArrayList<>(shapes.size());
+    shapes.forEach((key, shape) -> snapshot.add(shape.snapshot()));
+    snapshot.sort(Comparator.comparingLong(QueryShapeStats::getCalls).reversed());
+    return snapshot.size() > limit ? new ArrayList<>(snapshot.subList(0, limit)) : snapshot;
+  }
+}
@@ -0,0 +1,98 @@
+package com.wayfair.javafroid;
+
+/**
+ * A snapshot of what Froid saw of one distinct query text, see {@link Froid#getQueryShapes(int)}.
+ * Latencies are in nanoseconds.
+ */
+public final class QueryShapeStats {
+
+  private final String query;
+  private final String operationName;
+  private final long calls;
+  private final long failures;
+  private final long totalLatencyNanos;
+  private final long maxLatencyNanos;
+  private final long nodeCalls;
+  private final long totalNodes;
+  private final long maxNodes;
+  private final long entitiesCalls;
+  private final long totalRepresentations;
+  private final long maxRepresentations;
+
+  QueryShapeStats(String query, String operationName, long calls, long failures, long totalLatencyNanos,
+      long maxLatencyNanos, long nodeCalls, long totalNodes, long maxNodes, long entitiesCalls,
+      long totalRepresentations, long maxRepresentations) {
+    this.query = query;
+    this.operationName = operationName;
+    this.calls = calls;
+    this.failures = failures;
+    this.totalLatencyNanos = totalLatencyNanos;
+    this.maxLatencyNanos = maxLatencyNanos;
+    this.nodeCalls = nodeCalls;
+    this.totalNodes = totalNodes;
+    this.maxNodes = maxNodes;
+    this.entitiesCalls = entitiesCalls;
+    this.totalRepresentations = totalRepresentations;
+    this.maxRepresentations = maxRepresentations;
+  }
+
+  /**
+   * @return The query text, e.g. to warm up with
+   */
+  public String getQuery() {
+    return query;
+  }
+
+  /**
+   * @return The operation name of the latest call, or null
+   */
+  public String getOperationName() {
+    return operationName;
+  }
+
+  public long getCalls() {
+    return calls;
+  }
+
+  public long getFailures() {
+    return failures;
+  }
+
+  public double getMeanLatencyNanos() {
+    return calls == 0 ? 0 : (double) totalLatencyNanos / calls;
+  }
+
+  public long getMaxLatencyNanos() {
+    return maxLatencyNanos;
+  }
+
+  /**
+   * @return The mean number of node fields of the node queries of this shape, 0 when there were none
+   */
+  public double getMeanNodes() {
+    return nodeCalls == 0 ? 0 : (double) totalNodes / nodeCalls;
+  }
+
+  public long getMaxNodes() {
+    return maxNodes;
+  }
+
+  /**
+   * @return The mean number of representations of the _entities requests of this shape, 0 when there were none
+   */
+  public double getMeanRepresentations() {
+    return entitiesCalls == 0 ? 0 : (double) totalRepresentations / entitiesCalls;
+  }
+
+  public long getMaxRepresentations() {
+    return maxRepresentations;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("QueryShapeStats{operationName=%s, calls=%d, failures=%d, meanLatencyNanos=%.0f, "
+            + "meanNodes=%.1f, maxNodes=%d, meanRepresentations=%.1f, maxRepresentations=%d}",
+        operationName, calls, failures, getMeanLatencyNanos(), getMeanNodes(), maxNodes, getMeanRepresentations(),
+        maxRepresentations);
+  }
+}
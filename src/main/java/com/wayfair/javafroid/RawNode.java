@@ -0,0 +1,227 @@
+package com.wayfair.javafroid;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An entity object as JSON bytes, spliced from the decoded key JSON with __typename and id appended, so a
+ * node can be written to a streamed response without building a Map. Written with
+ * {@link com.fasterxml.jackson.core.JsonGenerator#writeRawValue(SerializableString)}.
+ */
+final class RawNode implements SerializableString {
+
+  private static final byte[] TYPE_NAME_FIELD = "\"__typename\":\"".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] ID_FIELD = "\",\"id\":\"".getBytes(StandardCharsets.UTF_8);
+  private static final String TYPE_NAME = "__typename";
+  private static final String ID = "id";
+
+  private final byte[] json;
+  // decoded and escaped lazily, only for the rare callers needing chars or a quoted string
+  private String value;
+  private byte[] quoted;
+
+  private RawNode(byte[] json) {
+    this.json = json;
+  }
+
+  /**
+   * Splice key JSON into an entity object. Only a single JSON object without __typename, id or duplicate
+   * fields qualifies; anything else is left to the Map based path, which also reports invalid keys.
+   *
+   * @param factory  The factory of the ObjectMapper, to validate the keys
+   * @param keys     The decoded keys
+   * @param offset   The offset of the keys
+   * @param length   The length of the keys
+   * @param typeName The __typename
+   * @param id       The global id
+   * @return The entity object, or null when the keys don't qualify
+   * @throws IOException Any I/O errors other than invalid JSON
+   */
+  static RawNode splice(JsonFactory factory, byte[] keys, int offset, int length, String typeName, String id)
+      throws IOException {
+    boolean empty = true;
+    try (JsonParser parser = factory.createParser(keys, offset, length)) {
+      parser.enable(JsonParser.Feature.STRICT_DUPLICATE_DETECTION);
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return null;
+      }
+      JsonToken token;
+      while ((token = parser.nextToken()) != JsonToken.END_OBJECT) {
+        String name = parser.currentName();
+        if (token != JsonToken.FIELD_NAME || name.equals(TYPE_NAME) || name.equals(ID)) {
+          return null;
+        }
+        parser.nextToken();
+        parser.skipChildren();
+        empty = false;
+      }
+      if (parser.nextToken() != null) {
+        return null;
+      }
+    } catch (JsonProcessingException e) {
+      return null;
+    }
+
+    // the object ends with its last '}', possibly followed by whitespace
+    int end = offset + length - 1;
+    while (keys[end] != '}') {
+      end--;
+    }
+
+    JsonStringEncoder encoder = JsonStringEncoder.getInstance();
+    byte[] quotedType = encoder.quoteAsUTF8(typeName);
+    byte[] quotedId = encoder.quoteAsUTF8(id);
+    int prefix = end - offset;
+    byte[] json = new byte[prefix + (empty ? 0 : 1) + TYPE_NAME_FIELD.length + quotedType.length + ID_FIELD.length
+        + quotedId.length + 2];
+
+    System.arraycopy(keys, offset, json, 0, prefix);
+    int position = prefix;
+    if (!empty) {
+      json[position++] = ',';
+    }
+    position = append(TYPE_NAME_FIELD, json, position);
+    position = append(quotedType, json, position);
+    position = append(ID_FIELD, json, position);
+    position = append(quotedId, json, position);
+    json[position++] = '"';
+    json[position] = '}';
+    return new RawNode(json);
+  }
+
+  private static int append(byte[] bytes, byte[] json, int position) {
+    System.arraycopy(bytes, 0, json, position, bytes.length);
+    return position + bytes.length;
+  }
+
+  @Override
+  public String getValue() {
+    String value = this.value;
+    if (value == null) {
+      value = new String(json, StandardCharsets.UTF_8);
+      this.value = value;
+    }
+    return value;
+  }
+
+  /**
+   * The UTF-16 length counted from the UTF-8 bytes: one char per byte that isn't a continuation byte, and
+   * two for the four byte sequences of supplementary characters.
+   */
+  @Override
+  public int charLength() {
+    int length = 0;
+    for (byte b : json) {
+      if ((b & 0xc0) != 0x80) {
+        length += (b & 0xf8) == 0xf0 ? 2 : 1;
+      }
+    }
+    return length;
+  }
+
+  @Override
+  public byte[] asUnquotedUTF8() {
+    return json;
+  }
+
+  @Override
+  public int appendUnquotedUTF8(byte[] buffer, int offset) {
+    if (offset + json.length > buffer.length) {
+      return -1;
+    }
+    System.arraycopy(json, 0, buffer, offset, json.length);
+    return json.length;
+  }
+
+  @Override
+  public int appendUnquoted(char[] buffer, int offset) {
+    String value = getValue();
+    if (offset + value.length() > buffer.length) {
+      return -1;
+    }
+    value.getChars(0, value.length(), buffer, offset);
+    return value.length();
+  }
+
+  @Override
+  public int writeUnquotedUTF8(OutputStream out) throws IOException {
+    out.write(json);
+    return json.length;
+  }
+
+  @Override
+  public int putUnquotedUTF8(ByteBuffer buffer) {
+    if (json.length > buffer.remaining()) {
+      return -1;
+    }
+    buffer.put(json);
+    return json.length;
+  }
+
+  // quoted, the JSON text is escaped as the contents of a JSON string
+
+  @Override
+  public char[] asQuotedChars() {
+    return JsonStringEncoder.getInstance().quoteAsString(getValue());
+  }
+
+  @Override
+  public byte[] asQuotedUTF8() {
+    byte[] quoted = this.quoted;
+    if (quoted == null) {
+      quoted = JsonStringEncoder.getInstance().quoteAsUTF8(getValue());
+      this.quoted = quoted;
+    }
+    return quoted;
+  }
+
+  @Override
+  public int appendQuotedUTF8(byte[] buffer, int offset) {
+    byte[] quoted = asQuotedUTF8();
+    if (offset + quoted.length > buffer.length) {
+      return -1;
+    }
+    System.arraycopy(quoted, 0, buffer, offset, quoted.length);
+    return quoted.length;
+  }
+
+  @Override
+  public int appendQuoted(char[] buffer, int offset) {
+    char[] quoted = asQuotedChars();
+    if (offset + quoted.length > buffer.length) {
+      return -1;
+    }
+    System.arraycopy(quoted, 0, buffer, offset, quoted.length);
+    return quoted.length;
+  }
+
+  @Override
+  public int writeQuotedUTF8(OutputStream out) throws IOException {
+    byte[] quoted = asQuotedUTF8();
+    out.write(quoted);
+    return quoted.length;
+  }
+
+  @Override
+  public int putQuotedUTF8(ByteBuffer buffer) {
+    byte[] quoted = asQuotedUTF8();
+    if (quoted.length > buffer.remaining()) {
+      return -1;
+    }
+    buffer.put(quoted);
+    return quoted.length;
+  }
+
+  @Override
+  public String toString() {
+    return getValue();
+  }
+}
@@ -0,0 +1,230 @@
+package com.wayfair.javafroid;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads _entities representations straight from a JSON request body. Each key field is copied as
+ * JSON text into a reusable buffer while it is read, and the key object is assembled from those
+ * buffers, so no Map is built per representation. One reader is meant to be reused for every
+ * representation of a request, it is not thread safe.
+ *
+ * <p>Types with a KeyWriter get their fields in the writer's order. Other key fields are written in the
+ * order a HashMap would iterate them, which is what the Map based path serializes, so both paths produce
+ * identical IDs.
+ */
+final class RepresentationReader {
+
+  private static final String TYPE_NAME = "__typename";
+  private static final int INITIAL_FIELDS = 4;
+
+  private final CharSink values = new CharSink();
+  private final JsonGenerator valueGenerator;
+  private final ByteArrayBuilder keyBytes = new ByteArrayBuilder();
+  private final JsonGenerator keyGenerator;
+  private final boolean sortKeys;
+  private final KeyWriters keyWriters;
+
+  private String typeName;
+  private String[] names = new String[INITIAL_FIELDS];
+  private int[] starts = new int[INITIAL_FIELDS];
+  private int[] ends = new int[INITIAL_FIELDS];
+  private int[] buckets = new int[INITIAL_FIELDS];
+  private int[] order = new int[INITIAL_FIELDS];
+  private int size;
+  private String lastType;
+  private KeyWriter lastWriter;
+
+  RepresentationReader(ObjectMapper mapper, KeyWriters keyWriters) throws IOException {
+    this.valueGenerator = mapper.getFactory().createGenerator(values);
+    this.valueGenerator.setRootValueSeparator(null);
+    this.keyGenerator = mapper.writer().createGenerator(keyBytes);
+    this.keyGenerator.setRootValueSeparator(null);
+    this.sortKeys = keyWriters.isCanonical() || mapper.isEnabled(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS);
+    this.keyWriters = keyWriters;
+  }
+
+  /**
+   * Read one representation object.
+   *
+   * @param parser The parser positioned on the START_OBJECT token of the representation
+   * @return true when the representation has a __typename, it is read to its end either way
+   * @throws IOException Any JSON parsing errors
+   */
+  boolean read(JsonParser parser) throws IOException {
+    typeName = null;
+    size = 0;
+    values.reset();
+
+    String name;
+    while ((name = parser.nextFieldName()) != null) {
+      JsonToken token = parser.nextToken();
+      if (name.equals(TYPE_NAME)) {
+        typeName = token == JsonToken.VALUE_NULL ? null : parser.getValueAsString();
+        continue;
+      }
+
+      int start = values.length();
+      valueGenerator.copyCurrentStructure(parser);
+      valueGenerator.flush();
+      add(name, start, values.length());
+    }
+
+    return typeName != null;
+  }
+
+  String typeName() {
+    return typeName;
+  }
+
+  /**
+   * The key fields of the last representation read, without __typename, as a JSON object.
+   *
+   * @return A view of the JSON bytes, valid until the next representation is read
+   * @throws IOException Any JSON processing errors
+   */
+  ByteBuffer keys() throws IOException {
+    if (!typeName.equals(lastType)) {
+      lastWriter = keyWriters.get(typeName, () -> Arrays.asList(names).subList(0, size));
+      lastType = typeName;
+    }
+
+    keyBytes.reset();
+    keyGenerator.writeStartObject();
+    if (lastWriter != null && lastWriter.order(names, size, order)) {
+      for (int i = 0; i < size; i++) {
+        int field = order[i];
+        keyGenerator.writeFieldName(lastWriter.name(i));
+        keyGenerator.writeRawValue(values.chars(), starts[field], ends[field] - starts[field]);
+      }
+    } else {
+      sortFields();
+      for (int i = 0; i < size; i++) {
+        int field = order[i];
+        keyGenerator.writeFieldName(names[field]);
+        keyGenerator.writeRawValue(values.chars(), starts[field], ends[field] - starts[field]);
+      }
+    }
+    keyGenerator.writeEndObject();
+    keyGenerator.flush();
+    return KeyBuffer.view(keyBytes);
+  }
+
+  private void add(String name, int start, int end) {
+    // a repeated field replaces the earlier value but keeps its position, like Map.put
+    for (int i = 0; i < size; i++) {
+      if (names[i].equals(name)) {
+        starts[i] = start;
+        ends[i] = end;
+        return;
+      }
+    }
+
+    if (size == names.length) {
+      int capacity = size * 2;
+      names = Arrays.copyOf(names, capacity);
+      starts = Arrays.copyOf(starts, capacity);
+      ends = Arrays.copyOf(ends, capacity);
+      buckets = Arrays.copyOf(buckets, capacity);
+      order = Arrays.copyOf(order, capacity);
+    }
+    names[size] = name;
+    starts[size] = start;
+    ends[size] = end;
+    size++;
+  }
+
+  /**
+   * Order the fields the way the Map based path would serialize them: by key when key order is canonical or
+   * the mapper sorts map entries, otherwise by HashMap bucket and then insertion order.
+   */
+  private void sortFields() {
+    int tableSize = 16;
+    while (size > tableSize * 3 / 4) {
+      tableSize <<= 1;
+    }
+    for (int i = 0; i < size; i++) {
+      int hash = names[i].hashCode();
+      buckets[i] = (hash ^ (hash >>> 16)) & (tableSize - 1);
+      order[i] = i;
+    }
+
+    // insertion sort is stable and representations only carry a handful of keys
+    for (int i = 1; i < size; i++) {
+      int field = order[i];
+      int j = i - 1;
+      while (j >= 0 && compare(order[j], field) > 0) {
+        order[j + 1] = order[j];
+        j--;
+      }
+      order[j + 1] = field;
+    }
+  }
+
+  private int compare(int a, int b) {
+    return sortKeys ? names[a].compareTo(names[b]) : Integer.compare(buckets[a], buckets[b]);
+  }
+
+  /**
+   * A Writer over a growable char array that can be read back in place and reset.
+   */
+  private static final class CharSink extends Writer {
+
+    private char[] buffer = new char[256];
+    private int length;
+
+    char[] chars() {
+      return buffer;
+    }
+
+    int length() {
+      return length;
+    }
+
+    void reset() {
+      length = 0;
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int count) {
+      ensureCapacity(count);
+      System.arraycopy(chars, offset, buffer, length, count);
+      length += count;
+    }
+
+    @Override
+    public void write(String text, int offset, int count) {
+      ensureCapacity(count);
+      text.getChars(offset, offset + count, buffer, length);
+      length += count;
+    }
+
+    @Override
+    public void write(int c) {
+      ensureCapacity(1);
+      buffer[length++] = (char) c;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void ensureCapacity(int count) {
+      if (length + count > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + count));
+      }
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package com.wayfair.javafroid.codec;
+
+import com.wayfair.javafroid.BufferCodec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts ids with AES-GCM using the JDK's default crypto provider. The output is the 12 byte nonce,
+ * followed by the ciphertext and the 16 byte authentication tag, so ids can't be read or forged without the key.
+ * The __typename Froid passes along with the keys is authenticated as additional data, so an id can't be
+ * relabelled as another type; the untyped methods authenticate no type.
+ *
+ * <p>Every thread keeps its own Cipher, so the codec can be shared without locking. Nonces are a random
+ * 32 bit prefix followed by a 64 bit counter, and both the prefix and the counter's starting value are drawn
+ * from SecureRandom per codec instance. Within an instance, threads reserve counter values in blocks, so
+ * concurrent encodes never share a nonce and rarely touch the shared counter. Across instances sharing a key,
+ * e.g. every process of a fleet, each instance starts at a random point of a 96 bit space, so two of them only
+ * repeat a nonce if their ranges overlap, which is as unlikely as two random 96 bit nonces colliding.
+ *
+ * <p>Since every encode uses a fresh nonce, encoding the same keys twice yields different ids.
+ */
+public final class AesGcmCodec implements BufferCodec {
+
+  private static final String ALGORITHM = "AES";
+  private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+  private static final int NONCE_LENGTH = 12;
+  private static final int TAG_LENGTH = 16;
+  private static final int COUNTER_BLOCK = 1 << 16;
+  private static final String NO_TYPE = "";
+
+  private final SecretKey key;
+  private final int noncePrefix;
+  private final AtomicLong counter;
+  private final ThreadLocal<State> states = ThreadLocal.withInitial(State::new);
+
+  /**
+   * @param key A 16, 24 or 32 byte AES key
+   */
+  public AesGcmCodec(byte[] key) {
+    this(new SecretKeySpec(key, ALGORITHM));
+  }
+
+  public AesGcmCodec(SecretKey key) {
+    if (!ALGORITHM.equals(key.getAlgorithm())) {
+      throw new IllegalArgumentException(String.format("expecting an AES key, got %s", key.getAlgorithm()));
+    }
+    this.key = key;
+    SecureRandom random = new SecureRandom();
+    this.noncePrefix = random.nextInt();
+    // a counter starting at 0 would make every instance with the same prefix emit the same nonces
+    this.counter = new AtomicLong(random.nextLong());
+    // fail fast on an unusable key instead of on the first id
+    encode(new byte[0]);
+  }
+
+  private final class State {
+
+    private final Cipher cipher;
+    private final byte[] nonce = new byte[NONCE_LENGTH];
+    private String typeName = "";
+    private byte[] typeNameBytes = new byte[0];
+    private long next;
+    private long end;
+
+    State() {
+      try {
+        cipher = Cipher.getInstance(TRANSFORMATION);
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    byte[] typeName(String typeName) {
+      if (!typeName.equals(this.typeName)) {
+        this.typeNameBytes = typeName.getBytes(StandardCharsets.UTF_8);
+        this.typeName = typeName;
+      }
+      return typeNameBytes;
+    }
+
+    byte[] nextNonce() {
+      if (next == end) {
+        next = counter.getAndAdd(COUNTER_BLOCK);
+        end = next + COUNTER_BLOCK;
+      }
+      long value = next++;
+      nonce[0] = (byte) (noncePrefix >>> 24);
+      nonce[1] = (byte) (noncePrefix >>> 16);
+      nonce[2] = (byte) (noncePrefix >>> 8);
+      nonce[3] = (byte) noncePrefix;
+      for (int i = 0; i < 8; i++) {
+        nonce[4 + i] = (byte) (value >>> (56 - 8 * i));
+      }
+      return nonce;
+    }
+  }
+
+  @Override
+  public int maxEncodedLength(int decodedLength) {
+    return NONCE_LENGTH + decodedLength + TAG_LENGTH;
+  }
+
+  @Override
+  public int maxDecodedLength(int encodedLength) {
+    return Math.max(0, encodedLength - NONCE_LENGTH - TAG_LENGTH);
+  }
+
+  @Override
+  public void encode(ByteBuffer src, ByteBuffer dst) {
+    encode(NO_TYPE, src, dst);
+  }
+
+  @Override
+  public boolean decode(ByteBuffer src, ByteBuffer dst) {
+    return decode(NO_TYPE, src, dst);
+  }
+
+  @Override
+  public void encode(String typeName, ByteBuffer src, ByteBuffer dst) {
+    State state = states.get();
+    byte[] nonce = state.nextNonce();
+    try {
+      state.cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+      state.cipher.updateAAD(state.typeName(typeName));
+      dst.put(nonce);
+      state.cipher.doFinal(src, dst);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public boolean decode(String typeName, ByteBuffer src, ByteBuffer dst) {
+    if (src.remaining() < NONCE_LENGTH + TAG_LENGTH) {
+      return false;
+    }
+    State state = states.get();
+    src.get(state.nonce);
+    try {
+      state.cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, state.nonce));
+      state.cipher.updateAAD(state.typeName(typeName));
+      state.cipher.doFinal(src, dst);
+      return true;
+    } catch (AEADBadTagException e) {
+      return false;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
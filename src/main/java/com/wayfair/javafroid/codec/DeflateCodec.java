@@ -0,0 +1,331 @@
+package com.wayfair.javafroid.codec;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wayfair.javafroid.BufferCodec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the key JSON with raw deflate and a preset dictionary, so the field names repeated in every id
+ * cost a back reference instead of their bytes. The dictionary is trained from sample representations with
+ * {@link #train(ObjectMapper, Iterable)}.
+ *
+ * <p>Every id starts with a format byte: 3 for keys stored as is, because compressing did not make them
+ * shorter, or 3 plus the id of the dictionary they were compressed with. Ids issued without this codec start
+ * with the '{' of their plain JSON, or the 1 or 2 of binary keys, and still decode. 0 is left to the
+ * {@link SurrogateKeyStore}, whose ids this codec rejects rather than misreading them. Each thread keeps its
+ * own Deflater and Inflater.
+ */
+public final class DeflateCodec implements BufferCodec {
+
+  private static final String TYPE_NAME = "__typename";
+  // the format versions of binary keys, see KeyFormat.BINARY
+  private static final byte LEGACY_NAMED = 1;
+  private static final byte LEGACY_POSITIONAL = 2;
+  private static final byte STORED = 3;
+  private static final byte LEGACY_JSON = '{';
+  // dictionary ids are written after the reserved format bytes
+  private static final int DICTIONARY_FORMAT = STORED;
+  private static final int MAX_DICTIONARY_ID = LEGACY_JSON - 1 - DICTIONARY_FORMAT;
+  // deflate can't expand its input more than this much
+  private static final int MAX_RATIO = 1032;
+  private static final int DEFAULT_MAX_KEY_LENGTH = 4096;
+  private static final int DEFAULT_MAX_DICTIONARY_LENGTH = 1024;
+
+  private final int dictionaryId;
+  private final byte format;
+  private final byte[][] dictionaries;
+  private final int level;
+  private final int maxKeyLength;
+  private final ThreadLocal<State> states;
+
+  private DeflateCodec(int dictionaryId, byte[][] dictionaries, int level, int maxKeyLength) {
+    this.dictionaryId = dictionaryId;
+    this.format = (byte) (DICTIONARY_FORMAT + dictionaryId);
+    this.dictionaries = dictionaries;
+    this.level = level;
+    this.maxKeyLength = maxKeyLength;
+    this.states = ThreadLocal.withInitial(State::new);
+  }
+
+  private final class State {
+
+    private final Deflater deflater = new Deflater(level, true);
+    private final Inflater inflater = new Inflater(true);
+    private byte[] scratch = new byte[256];
+
+    byte[] scratch(int length) {
+      if (scratch.length < length) {
+        scratch = new byte[length];
+      }
+      return scratch;
+    }
+  }
+
+  @Override
+  public int maxEncodedLength(int decodedLength) {
+    return decodedLength + 1;
+  }
+
+  @Override
+  public int maxDecodedLength(int encodedLength) {
+    return Math.max(encodedLength, (int) Math.min((long) encodedLength * MAX_RATIO, maxKeyLength));
+  }
+
+  @Override
+  public void encode(ByteBuffer src, ByteBuffer dst) {
+    int length = src.remaining();
+    if (length > 0 && length <= maxKeyLength) {
+      State state = states.get();
+      byte[] input = array(src, state);
+      int inputOffset = src.hasArray() ? src.arrayOffset() + src.position() : 0;
+
+      Deflater deflater = state.deflater;
+      deflater.reset();
+      deflater.setDictionary(dictionaries[dictionaryId]);
+      deflater.setInput(input, inputOffset, length);
+      deflater.finish();
+
+      // anything that does not fit in length - 1 bytes is not worth it, the keys are stored instead
+      boolean direct = dst.hasArray();
+      byte[] output = direct ? dst.array() : new byte[length];
+      int outputOffset = direct ? dst.arrayOffset() + dst.position() + 1 : 0;
+      int compressed = deflater.deflate(output, outputOffset, length - 1);
+      if (deflater.finished()) {
+        dst.put(format);
+        if (direct) {
+          ((Buffer) dst).position(dst.position() + compressed);
+        } else {
+          dst.put(output, 0, compressed);
+        }
+        ((Buffer) src).position(src.limit());
+        return;
+      }
+    }
+
+    dst.put(STORED);
+    dst.put(src);
+  }
+
+  @Override
+  public boolean decode(ByteBuffer src, ByteBuffer dst) {
+    if (!src.hasRemaining()) {
+      return false;
+    }
+
+    byte format = src.get(src.position());
+    if (format == LEGACY_JSON || format == LEGACY_NAMED || format == LEGACY_POSITIONAL) {
+      dst.put(src);
+      return true;
+    }
+    ((Buffer) src).position(src.position() + 1);
+    if (format == STORED) {
+      dst.put(src);
+      return true;
+    }
+    int id = format - DICTIONARY_FORMAT;
+    if (id < 1 || id > MAX_DICTIONARY_ID || dictionaries[id] == null) {
+      return false;
+    }
+
+    State state = states.get();
+    int length = src.remaining();
+    byte[] input = array(src, state);
+    int inputOffset = src.hasArray() ? src.arrayOffset() + src.position() : 0;
+
+    Inflater inflater = state.inflater;
+    inflater.reset();
+    inflater.setDictionary(dictionaries[id]);
+    inflater.setInput(input, inputOffset, length);
+    try {
+      if (dst.hasArray()) {
+        int inflated = inflater.inflate(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+        ((Buffer) dst).position(dst.position() + inflated);
+      } else {
+        byte[] output = new byte[dst.remaining()];
+        dst.put(output, 0, inflater.inflate(output, 0, output.length));
+      }
+    } catch (DataFormatException e) {
+      return false;
+    }
+    if (!inflater.finished() || inflater.getRemaining() != 0) {
+      return false;
+    }
+    ((Buffer) src).position(src.limit());
+    return true;
+  }
+
+  /**
+   * The backing array of a heap buffer, or a copy of the remaining bytes in the per thread scratch array.
+   */
+  private static byte[] array(ByteBuffer buffer, State state) {
+    if (buffer.hasArray()) {
+      return buffer.array();
+    }
+    byte[] copy = state.scratch(buffer.remaining());
+    buffer.duplicate().get(copy, 0, buffer.remaining());
+    return copy;
+  }
+
+  /**
+   * Train a dictionary of up to 1024 bytes.
+   *
+   * @see #train(ObjectMapper, Iterable, int)
+   */
+  public static byte[] train(ObjectMapper mapper, Iterable<? extends Map<String, Object>> representations) {
+    return train(mapper, representations, DEFAULT_MAX_DICTIONARY_LENGTH);
+  }
+
+  /**
+   * Train a dictionary from sample representations. Each distinct key shape, the key JSON without its
+   * values, becomes an entry, and the most common shapes are placed last where back references are
+   * cheapest. Pass the same ObjectMapper Froid uses, so the samples are written like real keys.
+   *
+   * @param mapper          The ObjectMapper that writes the key JSON
+   * @param representations Sample representations, with or without __typename
+   * @param maxLength       The maximum dictionary length; setting a dictionary costs time proportional
+   *                        to its length on every id
+   * @return The dictionary
+   */
+  public static byte[] train(
+      ObjectMapper mapper,
+      Iterable<? extends Map<String, Object>> representations,
+      int maxLength
+  ) {
+    Map<String, Integer> shapes = new LinkedHashMap<>();
+    for (Map<String, Object> representation : representations) {
+      Map<String, Object> keys = new HashMap<>(representation);
+      keys.remove(TYPE_NAME);
+      shapes.merge(shape(mapper, keys), 1, Integer::sum);
+    }
+
+    List<Map.Entry<String, Integer>> entries = new ArrayList<>(shapes.entrySet());
+    entries.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+
+    List<byte[]> kept = new ArrayList<>();
+    int length = 0;
+    for (Map.Entry<String, Integer> entry : entries) {
+      byte[] shape = entry.getKey().getBytes(StandardCharsets.UTF_8);
+      if (length + shape.length > maxLength) {
+        break;
+      }
+      kept.add(shape);
+      length += shape.length;
+    }
+
+    ByteArrayOutputStream dictionary = new ByteArrayOutputStream(length);
+    for (int i = kept.size() - 1; i >= 0; i--) {
+      dictionary.write(kept.get(i), 0, kept.get(i).length);
+    }
+    return dictionary.toByteArray();
+  }
+
+  private static String shape(ObjectMapper mapper, Map<String, Object> keys) {
+    StringBuilder shape = new StringBuilder();
+    try (JsonParser parser = mapper.getFactory().createParser(mapper.writeValueAsBytes(keys))) {
+      JsonToken token;
+      boolean first = true;
+      while ((token = parser.nextToken()) != null) {
+        if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+          shape.append(token == JsonToken.START_OBJECT ? '{' : '[');
+          first = true;
+        } else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+          shape.append(token == JsonToken.END_OBJECT ? '}' : ']');
+          first = false;
+        } else if (token == JsonToken.FIELD_NAME) {
+          shape.append(first ? "" : ",").append(mapper.writeValueAsString(parser.getCurrentName())).append(':');
+          first = false;
+        } else if (token == JsonToken.VALUE_STRING) {
+          shape.append("\"\"");
+          first = false;
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return shape.toString();
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+
+    private int dictionaryId;
+    private final byte[][] dictionaries = new byte[MAX_DICTIONARY_ID + 1][];
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private int maxKeyLength = DEFAULT_MAX_KEY_LENGTH;
+
+    /**
+     * The dictionary new ids are compressed with. Its id is written into every id, so a dictionary must
+     * never change once ids were issued with it; train a new one under a new id instead.
+     *
+     * @param id         The dictionary id, from 1 to 119 so its format byte can't be mistaken for plain JSON
+     * @param dictionary The dictionary, e.g. from {@link #train(ObjectMapper, Iterable)}
+     * @return The builder
+     */
+    public Builder setDictionary(int id, byte[] dictionary) {
+      addDictionary(id, dictionary);
+      this.dictionaryId = id;
+      return this;
+    }
+
+    /**
+     * A dictionary that ids issued earlier were compressed with, only used to decode them.
+     *
+     * @param id         The dictionary id, from 1 to 119
+     * @param dictionary The dictionary
+     * @return The builder
+     */
+    public Builder addDictionary(int id, byte[] dictionary) {
+      if (id < 1 || id > MAX_DICTIONARY_ID) {
+        throw new IllegalArgumentException(
+            String.format("expecting a dictionary id between 1 and %d, got %d", MAX_DICTIONARY_ID, id));
+      }
+      this.dictionaries[id] = dictionary.clone();
+      return this;
+    }
+
+    /**
+     * @param level The Deflater compression level
+     * @return The builder
+     */
+    public Builder setLevel(int level) {
+      this.level = level;
+      return this;
+    }
+
+    /**
+     * Longer keys are stored uncompressed. It also bounds the buffer an id may inflate into.
+     *
+     * @param maxKeyLength The maximum length of key JSON to compress, 4096 by default
+     * @return The builder
+     */
+    public Builder setMaxKeyLength(int maxKeyLength) {
+      this.maxKeyLength = maxKeyLength;
+      return this;
+    }
+
+    public DeflateCodec build() {
+      if (dictionaryId == 0) {
+        throw new IllegalStateException("expecting a dictionary to compress with");
+      }
+      return new DeflateCodec(dictionaryId, dictionaries.clone(), level, maxKeyLength);
+    }
+  }
+}
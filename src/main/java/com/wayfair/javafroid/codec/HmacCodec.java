@@ -0,0 +1,145 @@
+package com.wayfair.javafroid.codec;
+
+import com.wayfair.javafroid.BufferCodec;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signs ids instead of encrypting them: the keys stay readable, but an id can't be forged or altered
+ * without the secret. The output is the input followed by a truncated HMAC-SHA256 tag, which decode
+ * verifies in constant time before returning the input. The tag covers the __typename Froid passes along
+ * with the keys, so a signed id can't be relabelled as another type; the untyped methods sign with an empty
+ * type name.
+ *
+ * <p>Every thread keeps its own Mac, initialized once with the key, so signing skips the key schedule
+ * and needs no locking.
+ */
+public final class HmacCodec implements BufferCodec {
+
+  private static final String ALGORITHM = "HmacSHA256";
+  private static final int MAC_LENGTH = 32;
+  private static final int MIN_TAG_LENGTH = 8;
+  private static final int DEFAULT_TAG_LENGTH = 16;
+  private static final byte SEPARATOR = ':';
+  private static final String NO_TYPE = "";
+
+  private final SecretKeySpec key;
+  private final int tagLength;
+  private final ThreadLocal<State> states = ThreadLocal.withInitial(State::new);
+
+  /**
+   * @param key The secret, at least 32 bytes are recommended
+   */
+  public HmacCodec(byte[] key) {
+    this(key, DEFAULT_TAG_LENGTH);
+  }
+
+  /**
+   * @param key       The secret, at least 32 bytes are recommended
+   * @param tagLength The number of tag bytes appended to each id, between 8 and 32
+   */
+  public HmacCodec(byte[] key, int tagLength) {
+    if (tagLength < MIN_TAG_LENGTH || tagLength > MAC_LENGTH) {
+      throw new IllegalArgumentException(
+          String.format("expecting a tag length between %d and %d, got %d", MIN_TAG_LENGTH, MAC_LENGTH, tagLength));
+    }
+    this.key = new SecretKeySpec(key, ALGORITHM);
+    this.tagLength = tagLength;
+    // fail fast on an unusable key instead of on the first id
+    states.get();
+  }
+
+  private final class State {
+
+    private final Mac mac;
+    private final byte[] tag = new byte[MAC_LENGTH];
+    private String typeName = "";
+    private byte[] typeNameBytes = new byte[0];
+
+    State() {
+      try {
+        mac = Mac.getInstance(ALGORITHM);
+        mac.init(key);
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    /**
+     * Sign "typeName:" followed by the data. A type name can't contain ':', so the two can't be shifted into
+     * each other.
+     */
+    byte[] sign(String typeName, ByteBuffer data) {
+      if (!typeName.equals(this.typeName)) {
+        this.typeNameBytes = typeName.getBytes(StandardCharsets.UTF_8);
+        this.typeName = typeName;
+      }
+      mac.update(typeNameBytes);
+      mac.update(SEPARATOR);
+      mac.update(data);
+      try {
+        mac.doFinal(tag, 0);
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      }
+      return tag;
+    }
+  }
+
+  @Override
+  public int maxEncodedLength(int decodedLength) {
+    return decodedLength + tagLength;
+  }
+
+  @Override
+  public int maxDecodedLength(int encodedLength) {
+    return Math.max(0, encodedLength - tagLength);
+  }
+
+  @Override
+  public void encode(ByteBuffer src, ByteBuffer dst) {
+    encode(NO_TYPE, src, dst);
+  }
+
+  @Override
+  public boolean decode(ByteBuffer src, ByteBuffer dst) {
+    return decode(NO_TYPE, src, dst);
+  }
+
+  @Override
+  public void encode(String typeName, ByteBuffer src, ByteBuffer dst) {
+    byte[] tag = states.get().sign(typeName, src.duplicate());
+    dst.put(src);
+    dst.put(tag, 0, tagLength);
+  }
+
+  @Override
+  public boolean decode(String typeName, ByteBuffer src, ByteBuffer dst) {
+    int dataLength = src.remaining() - tagLength;
+    if (dataLength < 0) {
+      return false;
+    }
+
+    ByteBuffer data = src.duplicate();
+    ((Buffer) data).limit(src.position() + dataLength);
+    byte[] tag = states.get().sign(typeName, data.duplicate());
+
+    // constant time, so the comparison does not reveal how much of a forged tag is right
+    int diff = 0;
+    int tagStart = src.position() + dataLength;
+    for (int i = 0; i < tagLength; i++) {
+      diff |= tag[i] ^ src.get(tagStart + i);
+    }
+    if (diff != 0) {
+      return false;
+    }
+
+    dst.put(data);
+    ((Buffer) src).position(src.limit());
+    return true;
+  }
+}
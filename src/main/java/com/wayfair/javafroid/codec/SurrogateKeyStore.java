@@ -0,0 +1,367 @@
+package com.wayfair.javafroid.codec;
+
+import com.wayfair.javafroid.BufferCodec;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Replaces keys with dense surrogate numbers, so an id only carries a varint however long its keys are.
+ * The keys are kept in an append-only memory mapped file, which survives restarts and can be shared by
+ * several processes on the same host. Set it as the codec of the types with long keys, see
+ * {@code Froid.Builder.setCodec(String, Codec)}. The global id still carries the type, so types can share
+ * one store.
+ *
+ * <p>The file holds a header, a table of record offsets indexed by surrogate and the records themselves.
+ * Each process indexes the records in an off-heap open addressing hash table, so neither lookups nor
+ * decoding touch the Java heap beyond the keys copied out. Appends take a lock on the file and first index
+ * whatever other processes appended. Decoding only takes the lock for a surrogate beyond what this process
+ * indexed but within the count published in the file, so ids with unknown surrogates are rejected without
+ * contention. Only one store per file should be open in a JVM.
+ *
+ * <p>Ids start with a marker byte followed by the surrogate. Keys longer than the maximum key length, or
+ * added once the store is full, are written as is, as are ids issued before the store was used, which
+ * start with their key JSON.
+ */
+public final class SurrogateKeyStore implements BufferCodec, Closeable {
+
+  private static final byte SURROGATE = 0;
+  private static final long MAGIC = 0x46524f4944534b31L; // FROIDSK1
+  private static final int VERSION = 1;
+  private static final int MAGIC_AT = 0;
+  private static final int VERSION_AT = 8;
+  private static final int MAX_ENTRIES_AT = 12;
+  private static final int DATA_CAPACITY_AT = 16;
+  private static final int MAX_KEY_LENGTH_AT = 20;
+  private static final int COUNT_AT = 24;
+  private static final int DATA_END_AT = 28;
+  private static final int HEADER_LENGTH = 64;
+  private static final int MAX_VARINT_LENGTH = 5;
+  private static final int DEFAULT_MAX_ENTRIES = 1 << 20;
+  private static final int DEFAULT_DATA_CAPACITY = 64 << 20;
+  private static final int DEFAULT_MAX_KEY_LENGTH = 4096;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer file;
+  private final int maxEntries;
+  private final int maxKeyLength;
+  private final int dataStart;
+  private final int capacity;
+  // slots of (hash, surrogate + 1), 0 marks an empty slot
+  private final ByteBuffer index;
+  private final int mask;
+  // surrogates below this are indexed and their records visible to every thread
+  private volatile int published;
+
+  private SurrogateKeyStore(FileChannel channel, MappedByteBuffer file) {
+    this.channel = channel;
+    this.file = file;
+    this.maxEntries = file.getInt(MAX_ENTRIES_AT);
+    this.maxKeyLength = file.getInt(MAX_KEY_LENGTH_AT);
+    this.dataStart = HEADER_LENGTH + maxEntries * 4;
+    this.capacity = dataStart + file.getInt(DATA_CAPACITY_AT);
+    int slots = Integer.highestOneBit(Math.max(maxEntries, 1) * 2 - 1) << 1;
+    this.index = ByteBuffer.allocateDirect(slots * 8);
+    this.mask = slots - 1;
+  }
+
+  /**
+   * Open or create a store with room for 1M keys and 64MB of key data.
+   *
+   * @see #open(Path, int, int, int)
+   */
+  public static SurrogateKeyStore open(Path path) throws IOException {
+    return open(path, DEFAULT_MAX_ENTRIES, DEFAULT_DATA_CAPACITY, DEFAULT_MAX_KEY_LENGTH);
+  }
+
+  /**
+   * Open a store, creating the file when it does not exist. The limits only apply to a new file, an
+   * existing file keeps the limits it was created with. The file is sparse, so unused capacity costs no
+   * disk space.
+   *
+   * @param path         The store file
+   * @param maxEntries   The maximum number of keys, the index takes 16 to 32 bytes of direct memory per key
+   * @param dataCapacity The maximum total length of the keys, each taking 4 more bytes
+   * @param maxKeyLength Longer keys are not stored but written into the id as is
+   * @return The store
+   * @throws IOException When the file can't be opened, or is not a store
+   */
+  public static SurrogateKeyStore open(Path path, int maxEntries, int dataCapacity, int maxKeyLength)
+      throws IOException {
+    FileChannel channel = FileChannel.open(path,
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      SurrogateKeyStore store;
+      FileLock lock = channel.lock();
+      try {
+        if (channel.size() == 0) {
+          long size = HEADER_LENGTH + maxEntries * 4L + dataCapacity;
+          if (maxEntries <= 0 || dataCapacity <= 0 || size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("expecting a store smaller than 2GB");
+          }
+          MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+          file.putInt(VERSION_AT, VERSION);
+          file.putInt(MAX_ENTRIES_AT, maxEntries);
+          file.putInt(DATA_CAPACITY_AT, dataCapacity);
+          file.putInt(MAX_KEY_LENGTH_AT, maxKeyLength);
+          file.putInt(COUNT_AT, 0);
+          file.putInt(DATA_END_AT, HEADER_LENGTH + maxEntries * 4);
+          // written last, a file without it is not a store
+          file.putLong(MAGIC_AT, MAGIC);
+          file.force();
+          store = new SurrogateKeyStore(channel, file);
+        } else {
+          ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+          channel.read(header, 0);
+          if (header.getLong(MAGIC_AT) != MAGIC || header.getInt(VERSION_AT) != VERSION) {
+            throw new IOException(String.format("expecting a surrogate key store, got %s", path));
+          }
+          long size = HEADER_LENGTH + header.getInt(MAX_ENTRIES_AT) * 4L + header.getInt(DATA_CAPACITY_AT);
+          store = new SurrogateKeyStore(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+        store.catchUp();
+      } finally {
+        lock.release();
+      }
+      return store;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return The number of keys in the store, as far as this process has seen
+   */
+  public int size() {
+    return published;
+  }
+
+  @Override
+  public int maxEncodedLength(int decodedLength) {
+    return Math.max(decodedLength, 1 + MAX_VARINT_LENGTH);
+  }
+
+  @Override
+  public int maxDecodedLength(int encodedLength) {
+    return Math.max(encodedLength, maxKeyLength);
+  }
+
+  @Override
+  public void encode(ByteBuffer src, ByteBuffer dst) {
+    int surrogate = surrogate(src);
+    if (surrogate < 0) {
+      if (src.hasRemaining() && src.get(src.position()) == SURROGATE) {
+        throw new IllegalArgumentException("expecting keys that don't start with a 0 byte");
+      }
+      dst.put(src);
+      return;
+    }
+
+    dst.put(SURROGATE);
+    while ((surrogate & ~0x7f) != 0) {
+      dst.put((byte) (surrogate & 0x7f | 0x80));
+      surrogate >>>= 7;
+    }
+    dst.put((byte) surrogate);
+    ((Buffer) src).position(src.limit());
+  }
+
+  @Override
+  public boolean decode(ByteBuffer src, ByteBuffer dst) {
+    if (!src.hasRemaining() || src.get(src.position()) != SURROGATE) {
+      // keys written as is
+      dst.put(src);
+      return true;
+    }
+
+    src.get();
+    int surrogate = 0;
+    for (int shift = 0; ; shift += 7) {
+      if (!src.hasRemaining() || shift > 28) {
+        return false;
+      }
+      byte b = src.get();
+      surrogate |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        break;
+      }
+    }
+    if (src.hasRemaining() || surrogate < 0 || surrogate >= maxEntries) {
+      return false;
+    }
+
+    if (surrogate >= published) {
+      // the count is written after the record, so a surrogate beyond it was never issued
+      if (surrogate >= file.getInt(COUNT_AT)) {
+        return false;
+      }
+      // appended by another process since this one last looked
+      synchronized (this) {
+        if (surrogate >= published) {
+          withFileLock(this::catchUp);
+        }
+      }
+      if (surrogate >= published) {
+        return false;
+      }
+    }
+
+    int offset = file.getInt(HEADER_LENGTH + surrogate * 4);
+    int length = file.getInt(offset);
+    for (int i = 0; i < length; i++) {
+      dst.put(file.get(offset + 4 + i));
+    }
+    return true;
+  }
+
+  /**
+   * The surrogate of the keys, appending them when they are new.
+   *
+   * @return The surrogate, or -1 when the keys can't be stored
+   */
+  private int surrogate(ByteBuffer keys) {
+    int length = keys.remaining();
+    if (length > maxKeyLength) {
+      return -1;
+    }
+
+    int hash = hash(keys);
+    int found = find(keys, hash, published);
+    if (found >= 0) {
+      return found;
+    }
+
+    synchronized (this) {
+      int[] appended = {-1};
+      withFileLock(() -> {
+        catchUp();
+        appended[0] = find(keys, hash, published);
+        if (appended[0] < 0) {
+          appended[0] = append(keys, hash);
+        }
+      });
+      return appended[0];
+    }
+  }
+
+  /**
+   * Append a record, holding the file lock. The count in the header is written last, so other processes
+   * never index a partial record.
+   */
+  private int append(ByteBuffer keys, int hash) {
+    int count = file.getInt(COUNT_AT);
+    int end = file.getInt(DATA_END_AT);
+    int length = keys.remaining();
+    if (count == maxEntries || (long) end + 4 + length > capacity) {
+      return -1;
+    }
+
+    file.putInt(end, length);
+    for (int i = 0; i < length; i++) {
+      file.put(end + 4 + i, keys.get(keys.position() + i));
+    }
+    file.putInt(HEADER_LENGTH + count * 4, end);
+    file.putInt(DATA_END_AT, end + 4 + length);
+    file.putInt(COUNT_AT, count + 1);
+
+    insert(hash, count);
+    published = count + 1;
+    return count;
+  }
+
+  /**
+   * Index the records appended since this process last looked. Called with the file lock held.
+   */
+  private void catchUp() {
+    int count = file.getInt(COUNT_AT);
+    for (int surrogate = published; surrogate < count; surrogate++) {
+      int offset = file.getInt(HEADER_LENGTH + surrogate * 4);
+      int length = file.getInt(offset);
+      insert(hash(file, offset + 4, length), surrogate);
+    }
+    published = count;
+  }
+
+  private int find(ByteBuffer keys, int hash, int limit) {
+    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+      int stored = index.getInt(slot * 8 + 4) - 1;
+      if (stored < 0) {
+        return -1;
+      }
+      // surrogates from limit on may not be visible to this thread yet
+      if (stored < limit && index.getInt(slot * 8) == hash && matches(keys, stored)) {
+        return stored;
+      }
+    }
+  }
+
+  private void insert(int hash, int surrogate) {
+    int slot = hash & mask;
+    while (index.getInt(slot * 8 + 4) != 0) {
+      slot = (slot + 1) & mask;
+    }
+    index.putInt(slot * 8, hash);
+    index.putInt(slot * 8 + 4, surrogate + 1);
+  }
+
+  private boolean matches(ByteBuffer keys, int surrogate) {
+    int offset = file.getInt(HEADER_LENGTH + surrogate * 4);
+    int length = keys.remaining();
+    if (file.getInt(offset) != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (file.get(offset + 4 + i) != keys.get(keys.position() + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int hash(ByteBuffer keys) {
+    return hash(keys, keys.position(), keys.remaining());
+  }
+
+  /**
+   * FNV-1a with a final mix, so that linear probing spreads similar keys.
+   */
+  private static int hash(ByteBuffer bytes, int offset, int length) {
+    int hash = 0x811c9dc5;
+    for (int i = 0; i < length; i++) {
+      hash = (hash ^ (bytes.get(offset + i) & 0xff)) * 0x01000193;
+    }
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    return hash ^ hash >>> 13;
+  }
+
+  private void withFileLock(Runnable action) {
+    try {
+      FileLock lock = channel.lock();
+      try {
+        action.run();
+      } finally {
+        lock.release();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Flush the appended keys to disk and close the file.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    file.force();
+    channel.close();
+  }
+}
@@ -0,0 +1,117 @@
+package com.wayfair.javafroid.metrics;
+
+import com.wayfair.javafroid.FroidListener;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A FroidListener that aggregates everything it is told into lock free counters and {@link Histogram}s, for
+ * any metrics library to poll. Durations are in nanoseconds. One instance can be shared by several Froids.
+ */
+public final class FroidMetrics implements FroidListener {
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder failedRequests = new LongAdder();
+  private final Histogram requestDurations = new Histogram();
+  private final Histogram entityBatchSizes = new Histogram();
+  private final Histogram nodeCounts = new Histogram();
+  private final Histogram[] phaseDurations = histograms(Phase.values().length);
+  private final LongAdder[] cacheHits = adders(Cache.values().length);
+  private final LongAdder[] cacheMisses = adders(Cache.values().length);
+  private final LongAdder[] errors = adders(ErrorCategory.values().length);
+
+  @Override
+  public void onRequest(long durationNanos, boolean failed) {
+    requests.increment();
+    if (failed) {
+      failedRequests.increment();
+    }
+    requestDurations.record(durationNanos);
+  }
+
+  @Override
+  public void onEntities(int representations) {
+    entityBatchSizes.record(representations);
+  }
+
+  @Override
+  public void onNodes(int nodes) {
+    nodeCounts.record(nodes);
+  }
+
+  @Override
+  public void onPhase(Phase phase, long durationNanos) {
+    phaseDurations[phase.ordinal()].record(durationNanos);
+  }
+
+  @Override
+  public void onCache(Cache cache, boolean hit) {
+    (hit ? cacheHits : cacheMisses)[cache.ordinal()].increment();
+  }
+
+  @Override
+  public void onError(ErrorCategory category) {
+    errors[category.ordinal()].increment();
+  }
+
+  public long getRequests() {
+    return requests.sum();
+  }
+
+  public long getFailedRequests() {
+    return failedRequests.sum();
+  }
+
+  public Histogram getRequestDurations() {
+    return requestDurations;
+  }
+
+  /**
+   * @return The number of representations per _entities request
+   */
+  public Histogram getEntityBatchSizes() {
+    return entityBatchSizes;
+  }
+
+  /**
+   * @return The number of node fields per node query
+   */
+  public Histogram getNodeCounts() {
+    return nodeCounts;
+  }
+
+  /**
+   * @param phase The phase
+   * @return The durations of the phase, one per query, representation or id
+   */
+  public Histogram getPhaseDurations(Phase phase) {
+    return phaseDurations[phase.ordinal()];
+  }
+
+  public long getCacheHits(Cache cache) {
+    return cacheHits[cache.ordinal()].sum();
+  }
+
+  public long getCacheMisses(Cache cache) {
+    return cacheMisses[cache.ordinal()].sum();
+  }
+
+  public long getErrors(ErrorCategory category) {
+    return errors[category.ordinal()].sum();
+  }
+
+  private static Histogram[] histograms(int size) {
+    Histogram[] histograms = new Histogram[size];
+    for (int i = 0; i < size; i++) {
+      histograms[i] = new Histogram();
+    }
+    return histograms;
+  }
+
+  private static LongAdder[] adders(int size) {
+    LongAdder[] adders = new LongAdder[size];
+    for (int i = 0; i < size; i++) {
+      adders[i] = new LongAdder();
+    }
+    return adders;
+  }
+}
@@ -0,0 +1,108 @@
+package com.wayfair.javafroid.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of non-negative values in power of two buckets: bucket 0 counts zeros, and bucket i
+ * counts values from 2^(i-1) to 2^i - 1. Buckets are LongAdders, which stripe under contention, so recording
+ * never blocks and costs a few nanoseconds. Percentiles are accurate to the bucket, within a factor of two,
+ * which is enough to tell a microsecond from a millisecond. Readers see a snapshot that may be a few records
+ * behind concurrent writers.
+ */
+public final class Histogram {
+
+  private static final int BUCKETS = 64;
+
+  private final LongAdder[] buckets = new LongAdder[BUCKETS];
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  public Histogram() {
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * @param value The value, negative values are recorded as 0
+   */
+  public void record(long value) {
+    long recorded = Math.max(0, value);
+    buckets[bucket(recorded)].increment();
+    count.increment();
+    sum.add(recorded);
+    max.accumulate(recorded);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getSum() {
+    return sum.sum();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    long n = count.sum();
+    return n == 0 ? 0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * @param percentile The percentile, from 0 to 100
+   * @return The upper bound of the bucket holding the percentile, 0 when nothing was recorded
+   */
+  public long getPercentile(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException(String.format("expecting a percentile from 0 to 100, got %s", percentile));
+    }
+    long[] counts = getBucketCounts();
+    long total = 0;
+    for (long bucketCount : counts) {
+      total += bucketCount;
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(getBucketUpperBound(i), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  /**
+   * @return The count of each bucket, see {@link #getBucketUpperBound(int)}
+   */
+  public long[] getBucketCounts() {
+    long[] counts = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = buckets[i].sum();
+    }
+    return counts;
+  }
+
+  /**
+   * @param bucket The bucket index
+   * @return The largest value the bucket counts
+   */
+  public static long getBucketUpperBound(int bucket) {
+    if (bucket == 0) {
+      return 0;
+    }
+    return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+  }
+
+  private static int bucket(long value) {
+    return BUCKETS - Long.numberOfLeadingZeros(value);
+  }
+}
@@ -8,6 +8,8 @@ public class Error {
 
   private List<Location> locations;
 
+  private List<Object> path;
+
   public Error() {
   }
 
@@ -16,6 +18,12 @@ public class Error {
     this.locations = locations;
   }
 
+  public Error(String message, List<Location> locations, List<Object> path) {
+    this.message = message;
+    this.locations = locations;
+    this.path = path;
+  }
+
   public String getMessage() {
     return message;
   }
@@ -24,6 +32,10 @@ public class Error {
     return locations;
   }
 
+  public List<Object> getPath() {
+    return path;
+  }
+
   public void setMessage(String message) {
     this.message = message;
   }
@@ -32,6 +44,10 @@ public class Error {
     this.locations = locations;
   }
 
+  public void setPath(List<Object> path) {
+    this.path = path;
+  }
+
   public static Builder builder() {
     return new Builder();
   }
@@ -40,6 +56,7 @@ public class Error {
 
     private String message;
     private List<Location> locations;
+    private List<Object> path;
 
     public Builder setMessage(String message) {
       this.message = message;
@@ -51,8 +68,13 @@ public class Error {
       return this;
     }
 
+    public Builder setPath(List<Object> path) {
+      this.path = path;
+      return this;
+    }
+
     public Error build() {
-      return new Error(message, locations);
+      return new Error(message, locations, path);
     }
   }
 }
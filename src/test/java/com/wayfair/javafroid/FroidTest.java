@@ -1,14 +1,51 @@
 package com.wayfair.javafroid;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wayfair.javafroid.FroidListener.Cache;
+import com.wayfair.javafroid.FroidListener.ErrorCategory;
+import com.wayfair.javafroid.FroidListener.Phase;
+import com.wayfair.javafroid.metrics.FroidMetrics;
+import com.wayfair.javafroid.metrics.Histogram;
+import com.wayfair.javafroid.model.BaseResponse;
 import com.wayfair.javafroid.model.EntitiesResponse;
 import com.wayfair.javafroid.model.EntityObjectResponse;
+import com.wayfair.javafroid.model.Error;
 import com.wayfair.javafroid.model.Request;
+import graphql.parser.Parser;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 import org.junit.jupiter.api.Test;
 
 class FroidTest {
@@ -57,6 +94,157 @@ class FroidTest {
     }
   }
 
+  @Test
+  void testEntitiesResponseSkipsParsing() {
+    Froid froid = Froid.builder()
+        .setDocumentProvider((query, parseFunction) -> {
+          throw new IllegalStateException("the _entities path should not parse the query");
+        })
+        .build();
+
+    Request request = Request
+        .builder()
+        .setQuery("query booksByGenre__node_relay_service__1($representations:[_Any!]!) {"
+            + "_entities(representations:$representations){...on DemoBook{id}}"
+            + "}")
+        .setVariables(new HashMap<String, Object>() {{
+          put("representations", new ArrayList<Object>() {{
+            add(new HashMap<String, Object>() {{
+              put("__typename", "DemoBook");
+              put("bookId", 1);
+            }});
+          }});
+        }})
+        .setOperationName("booksByGenre__node_relay_service__1")
+        .build();
+
+    EntitiesResponse response = (EntitiesResponse) froid.handleFroidRequest(request);
+
+    assertEquals(1, response.getData().getEntities().size());
+    assertEquals(DEMO_BOOK_1, response.getData().getEntities().get(0).getId());
+  }
+
+  @Test
+  void testEntitiesResponseParallel() throws IOException {
+    Froid froid = Froid.builder()
+        .setForkJoinPool(ForkJoinPool.commonPool())
+        .setParallelThreshold(16)
+        .build();
+
+    List<Object> representations = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      int bookId = i;
+      representations.add(new HashMap<String, Object>() {{
+        put("__typename", "DemoBook");
+        put("bookId", bookId);
+      }});
+    }
+    Request request = Request
+        .builder()
+        .setVariables(new HashMap<String, Object>() {{
+          put("representations", representations);
+        }})
+        .build();
+
+    EntitiesResponse parallel = (EntitiesResponse) froid.handleFroidRequest(request);
+    EntitiesResponse sequential = (EntitiesResponse) service.handleFroidRequest(request);
+
+    assertEquals(1000, parallel.getData().getEntities().size());
+    assertEquals(DEMO_BOOK_1, parallel.getData().getEntities().get(1).getId());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(sequential.getData().getEntities().get(i).getId(), parallel.getData().getEntities().get(i).getId());
+    }
+
+    // streamed as encoded on the calling thread, or once a split batch is done
+    for (Froid streaming : new Froid[]{froid, service}) {
+      ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+      streaming.handleFroidRequest(request, streamed);
+      assertEquals(ids(sequential), ids(new ObjectMapper().readValue(streamed.toByteArray(), EntitiesResponse.class)));
+    }
+  }
+
+  @Test
+  void testBatchExecutorResamplesSplitBatches() {
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      BatchExecutor executor = new BatchExecutor(pool, BatchExecutor.ADAPTIVE);
+      // a slow first batch makes every later batch of 100 look worth splitting
+      executor.run(1, i -> Thread.sleep(1));
+
+      Thread caller = Thread.currentThread();
+      boolean sequential = false;
+      for (int batch = 0; batch < 1000 && !sequential; batch++) {
+        AtomicInteger split = new AtomicInteger();
+        executor.run(100, i -> {
+          if (Thread.currentThread() != caller) {
+            split.incrementAndGet();
+          }
+        });
+        sequential = split.get() == 0;
+      }
+      // the split batches measured how cheap the items really are
+      assertTrue(sequential);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  void testEntityObjectsParallel() {
+    Froid froid = Froid.builder()
+        .setForkJoinPool(ForkJoinPool.commonPool())
+        .setParallelThreshold(2)
+        .build();
+
+    StringBuilder query = new StringBuilder("query author__node_relay_service__0 {");
+    for (int i = 0; i < 100; i++) {
+      query.append("a").append(i).append(":node(id:\"").append(i % 2 == 0 ? DEMO_AUTHOR_4 : DEMO_BOOK_2)
+          .append("\"){__typename}");
+    }
+    Request request = Request.builder().setQuery(query.append("}").toString()).build();
+
+    EntityObjectResponse response = (EntityObjectResponse) froid.handleFroidRequest(request);
+
+    assertEquals(100, response.getData().size());
+    assertEquals(4, ((Map) response.getData().get("a98")).get("authorId"));
+    assertEquals(2, ((Map) response.getData().get("a99")).get("bookId"));
+  }
+
+  @Test
+  void testEntitiesKeyFieldOrder() throws IOException {
+    Froid configured = Froid.builder()
+        .setKeyFields("DemoEdition", "isbn", "bookId")
+        .build();
+    Froid canonical = Froid.builder()
+        .setCanonicalKeyOrder(true)
+        .build();
+
+    Map<String, Object> representation = new LinkedHashMap<String, Object>() {{
+      put("bookId", 1);
+      put("__typename", "DemoEdition");
+      put("isbn", "978-3");
+    }};
+    String body = "{\"variables\":{\"representations\":["
+        + "{\"bookId\":1,\"__typename\":\"DemoEdition\",\"isbn\":\"978-3\"}]}}";
+    String configuredKeys = "{\"isbn\":\"978-3\",\"bookId\":1}";
+    String canonicalKeys = "{\"bookId\":1,\"isbn\":\"978-3\"}";
+
+    Froid[] froids = {configured, canonical};
+    String[] keys = {configuredKeys, canonicalKeys};
+    for (int i = 0; i < froids.length; i++) {
+      String expected = froids[i].toGlobalId("DemoEdition",
+          Base64.getEncoder().encodeToString(keys[i].getBytes(StandardCharsets.UTF_8)));
+
+      EntitiesResponse response = froids[i].generateEntityObjectWithId(Collections.singletonList(representation));
+      assertEquals(expected, response.getData().getEntities().get(0).getId());
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      froids[i].handleFroidRequest(body.getBytes(StandardCharsets.UTF_8), out);
+      JsonNode streamed = new ObjectMapper().readTree(out.toByteArray());
+      assertEquals(expected, streamed.get("data").get("_entities").get(0).get("id").asText());
+    }
+  }
+
   @Test
   void testEntityObjectsMultiAliasVariables() {
     Request request = Request
@@ -128,6 +316,110 @@ class FroidTest {
     assertEquals(4, ((Map) response.getData().get("node")).get("authorId"));
   }
 
+  @Test
+  void testEntityObjectsPlanCached() {
+    AtomicInteger parses = new AtomicInteger();
+    Froid froid = Froid.builder()
+        .setDocumentProvider((query, parseFunction) -> {
+          parses.incrementAndGet();
+          return parseFunction.apply(query);
+        })
+        .build();
+
+    for (String id : new String[]{DEMO_AUTHOR_4, DEMO_AUTHOR_1}) {
+      Request request = Request
+          .builder()
+          .setQuery("query author__node_relay_service__0($nodeId:ID!) {"
+              + "node(id:$nodeId){__typename ...on DemoAuthor{__typename authorId}}"
+              + "}")
+          .setVariables(new HashMap<String, Object>() {{
+            put("nodeId", id);
+          }})
+          .setOperationName("author__node_relay_service__0")
+          .build();
+
+      EntityObjectResponse response = (EntityObjectResponse) froid.handleFroidRequest(request);
+
+      assertEquals(id, ((Map) response.getData().get("node")).get("id"));
+    }
+
+    assertEquals(1, parses.get());
+  }
+
+  @Test
+  void testNodeQueryScannerMatchesParser() {
+    Parser parser = new Parser();
+    String[] queries = {
+        "query author__node_relay_service__0($nodeId:ID!$nodeId2:ID!) {"
+            + "a:node(id:$nodeId){__typename ...on DemoAuthor{__typename authorId}}"
+            + "b : node ( id : $nodeId2 ) { __typename ... on DemoBook { bookId } }"
+            + "}",
+        "query author__node_relay_service__0 {"
+            + "node(id:\"" + DEMO_AUTHOR_4 + "\"){__typename ...on DemoAuthor{__typename authorId}}"
+            + "other(arg: {a: [1, \"}\"]}) { node(id: $nope) { id } }"
+            + "}",
+        "query ($nodeId: ID! = \"x)\") { node(first: $other, id: $nodeId) { id } }",
+        "{ node(id: $nodeId) { id } , c: node(id: \"" + DEMO_BOOK_1 + "\") }",
+        "query ($a: [[ID!]]! = [[\"x\"]], $b: Int = -1.5e3) { node(id: $nodeId, b: {c: [true, null, ENUM]}) {"
+            + " ... { id } x(y: $a) { z } } }",
+    };
+
+    for (String query : queries) {
+      NodePlan scanned = NodeQueryScanner.scan(query);
+      NodePlan parsed = NodePlan.compile(parser.parseDocument(query).getChildren().get(0));
+      Map<String, Object> variables = new HashMap<String, Object>() {{
+        put("nodeId", DEMO_AUTHOR_4);
+        put("nodeId2", DEMO_AUTHOR_1);
+      }};
+
+      assertEquals(parsed.size(), scanned.size(), query);
+      for (int i = 0; i < parsed.size(); i++) {
+        assertEquals(parsed.responseName(i), scanned.responseName(i), query);
+        assertEquals(parsed.idValue(i, variables), scanned.idValue(i, variables), query);
+      }
+    }
+
+    assertNull(NodeQueryScanner.scan("query a { # comment\n node(id: $nodeId) { id } }"));
+    assertNull(NodeQueryScanner.scan("query a { ...on Query { node(id: $nodeId) { id } } }"));
+    assertNull(NodeQueryScanner.scan("query a { node(id: \"a\\\"b\") { id } }"));
+    assertNull(NodeQueryScanner.scan("query a { node(id: $nodeId) @skip(if: true) { id } }"));
+    assertNull(NodeQueryScanner.scan("query a { node(id: $nodeId) { id } } fragment f on Node { id }"));
+    // skipped regions must be valid too
+    assertNull(NodeQueryScanner.scan("query ($x: ) { a: node(id:\"" + DEMO_BOOK_1 + "\") { !!! } }"));
+    assertNull(NodeQueryScanner.scan("{ a: node(id:\"" + DEMO_BOOK_1 + "\") { ((( } }"));
+    assertNull(NodeQueryScanner.scan("{ a: node(id: $nodeId) { ...f } }"));
+    assertNull(NodeQueryScanner.scan("{ a: node(id: $nodeId) { b(c: 01) } }"));
+  }
+
+  @Test
+  void testEntityObjectsScanned() {
+    Froid froid = Froid.builder()
+        .setNodeQueryScanner(true)
+        .setDocumentProvider((query, parseFunction) -> {
+          throw new IllegalStateException("the scanner should handle gateway generated queries");
+        })
+        .build();
+
+    Request request = Request
+        .builder()
+        .setQuery("query author__node_relay_service__0($nodeId:ID!$nodeId2:ID!) {"
+            + "a:node(id:$nodeId){__typename ...on DemoAuthor{__typename authorId}}"
+            + "b:node(id:\"" + DEMO_BOOK_2 + "\"){__typename ...on DemoBook{__typename bookId}}"
+            + "}")
+        .setVariables(new HashMap<String, Object>() {{
+          put("nodeId", DEMO_AUTHOR_4);
+        }})
+        .setOperationName("author__node_relay_service__0")
+        .build();
+
+    EntityObjectResponse response = (EntityObjectResponse) froid.handleFroidRequest(request);
+
+    assertEquals(4, ((Map) response.getData().get("a")).get("authorId"));
+    assertEquals(DEMO_AUTHOR_4, ((Map) response.getData().get("a")).get("id"));
+    assertEquals(2, ((Map) response.getData().get("b")).get("bookId"));
+    assertEquals("DemoBook", ((Map) response.getData().get("b")).get("__typename"));
+  }
+
   @Test
   void testEntityObjectsValue() {
     System.out.println("oooowww");
@@ -145,6 +437,845 @@ class FroidTest {
     assertEquals(4, ((Map) response.getData().get("node")).get("authorId"));
   }
 
+  @Test
+  void testStreamingMatchesModel() throws IOException {
+    ObjectMapper mapper = new ObjectMapper();
+    Request entities = Request
+        .builder()
+        .setQuery("query booksByGenre__node_relay_service__1($representations:[_Any!]!) {"
+            + "_entities(representations:$representations){...on DemoBook{id}}"
+            + "}")
+        .setVariables(new HashMap<String, Object>() {{
+          put("representations", new ArrayList<Object>() {{
+            add(new HashMap<String, Object>() {{
+              put("__typename", "DemoBook");
+              put("bookId", 1);
+            }});
+            add(new HashMap<String, Object>() {{
+              put("__typename", "DemoAuthor");
+              put("authorId", 4);
+            }});
+          }});
+        }})
+        .build();
+    Request nodes = Request
+        .builder()
+        .setQuery("query author__node_relay_service__0($nodeId:ID!) {"
+            + "a:node(id:$nodeId){__typename ...on DemoAuthor{__typename authorId}}"
+            + "b:node(id:\"" + DEMO_BOOK_2 + "\"){__typename ...on DemoBook{__typename bookId}}"
+            + "}")
+        .setVariables(new HashMap<String, Object>() {{
+          put("nodeId", DEMO_AUTHOR_4);
+        }})
+        .build();
+
+    for (Request request : new Request[]{entities, nodes}) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      service.handleFroidRequest(request, out);
+
+      JsonNode streamed = mapper.readTree(out.toByteArray());
+      JsonNode model = mapper.valueToTree(service.handleFroidRequest(request));
+
+      assertEquals(model.get("data"), streamed.get("data"));
+      assertNull(streamed.get("errors"));
+    }
+  }
+
+  @Test
+  void testSplicedNodesMatchModel() throws IOException {
+    ObjectMapper mapper = new ObjectMapper();
+    Froid spliced = Froid.builder().setSpliceNodeKeys(true).build();
+    String[] ids = {
+        DEMO_AUTHOR_4,
+        service.toGlobalId("DemoBook", Base64.getEncoder().encodeToString("{ }".getBytes(StandardCharsets.UTF_8))),
+        service.toGlobalId("Demo\"Book", Base64.getEncoder().encodeToString(
+            "{\"nested\":{\"id\":[1,2.5,null,\"\\u00e9\"]},\"bookId\":1} ".getBytes(StandardCharsets.UTF_8))),
+        // read into a Map: keys holding id, duplicate keys, binary keys
+        service.toGlobalId("DemoBook", Base64.getEncoder().encodeToString(
+            "{\"id\":1,\"bookId\":1}".getBytes(StandardCharsets.UTF_8))),
+        service.toGlobalId("DemoBook", Base64.getEncoder().encodeToString(
+            "{\"bookId\":1,\"bookId\":2}".getBytes(StandardCharsets.UTF_8))),
+        ids(Froid.builder().setKeyFormat(KeyFormat.BINARY).build().generateEntityObjectWithId(
+            Collections.singletonList(Collections.singletonMap("__typename", "DemoBook")))).get(0),
+    };
+
+    StringBuilder query = new StringBuilder("query {");
+    for (int i = 0; i < ids.length; i++) {
+      query.append("n").append(i).append(":node(id:\"").append(ids[i]).append("\"){__typename}");
+    }
+    Request request = Request.builder().setQuery(query.append("}").toString()).build();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    spliced.handleFroidRequest(request, out);
+    JsonNode streamed = mapper.readTree(out.toByteArray());
+    assertEquals(mapper.valueToTree(service.handleFroidRequest(request)).get("data"), streamed.get("data"));
+    // spliced keys keep their whitespace, keys read into a Map keep their field order
+    assertTrue(out.toString("UTF-8").contains("\"n1\":{ \"__typename\""));
+    List<String> fields = new ArrayList<>();
+    streamed.get("data").get("n3").fieldNames().forEachRemaining(fields::add);
+    assertEquals(Arrays.asList("id", "bookId", "__typename"), fields);
+
+    out.reset();
+    spliced.handleFroidRequest(Request.builder().setQuery("query {node(id:\"" + service.toGlobalId("DemoBook",
+        Base64.getEncoder().encodeToString("{\"bookId\":".getBytes(StandardCharsets.UTF_8))) + "\"){id}}")
+        .build(), out);
+    assertEquals(1, mapper.readTree(out.toByteArray()).get("errors").size());
+  }
+
+  @Test
+  void testMalformedKeysShareOneError() {
+    String[] keys = {"{\"bookId\":", "junk", "\u0001\u0005", "\u0002"};
+    StringBuilder query = new StringBuilder("query {");
+    for (int i = 0; i < keys.length; i++) {
+      query.append("n").append(i).append(":node(id:\"").append(service.toGlobalId("DemoBook",
+          Base64.getEncoder().encodeToString(keys[i].getBytes(StandardCharsets.UTF_8)))).append("\"){__typename}");
+    }
+
+    EntityObjectResponse response = (EntityObjectResponse) service.handleFroidRequest(Request.builder()
+        .setQuery(query.append("}").toString())
+        .build());
+    List<Error> errors = response.getErrors();
+    assertEquals(keys.length, errors.size());
+    assertTrue(errors.get(0).getMessage().contains("expecting a valid global id"));
+    for (Error error : errors) {
+      assertSame(errors.get(0).getMessage(), error.getMessage());
+    }
+  }
+
+  @Test
+  void testEntityObjectsProjected() throws IOException {
+    String edition = service.toGlobalId("DemoEdition", Base64.getEncoder().encodeToString(
+        "{\"isbn\":\"0261103571\",\"bookId\":2,\"format\":\"paperback\"}".getBytes(StandardCharsets.UTF_8)));
+    Request request = Request
+        .builder()
+        .setQuery("query ($edition:ID!) {"
+            + "a:node(id:\"" + DEMO_AUTHOR_4 + "\"){__typename ...on DemoAuthor{__typename author:authorId}}"
+            + "b:node(id:\"" + DEMO_BOOK_2 + "\"){__typename ...on DemoAuthor{authorId} ...on DemoBook{id bookId}}"
+            + "e:node(id:$edition){...on Node{id} ...on DemoEdition{isbn ...{bookId}} missing}"
+            + "s:node(id:$edition){...EditionFields}"
+            + "d:node(id:$edition){isbn @include(if:true)}"
+            + "}"
+            + "fragment EditionFields on DemoEdition{isbn}")
+        .setVariables(Collections.singletonMap("edition", edition))
+        .build();
+
+    for (Froid froid : new Froid[]{
+        Froid.builder().setNodeProjection(true).build(),
+        Froid.builder().setNodeProjection(true).setNodeQueryScanner(true).setSpliceNodeKeys(true).build()}) {
+      Map<String, Object> data = ((EntityObjectResponse) froid.handleFroidRequest(request)).getData();
+      assertEquals(new ObjectMapper().readTree("{"
+              + "\"a\":{\"__typename\":\"DemoAuthor\",\"author\":4},"
+              + "\"b\":{\"__typename\":\"DemoBook\",\"id\":\"" + DEMO_BOOK_2 + "\",\"bookId\":2},"
+              + "\"e\":{\"id\":\"" + edition + "\",\"isbn\":\"0261103571\",\"bookId\":2},"
+              + "\"s\":{\"isbn\":\"0261103571\",\"bookId\":2,\"format\":\"paperback\",\"__typename\":\"DemoEdition\","
+              + "\"id\":\"" + edition + "\"},"
+              + "\"d\":{\"isbn\":\"0261103571\",\"bookId\":2,\"format\":\"paperback\",\"__typename\":\"DemoEdition\","
+              + "\"id\":\"" + edition + "\"}}"),
+          new ObjectMapper().valueToTree(data));
+      assertEquals(Arrays.asList("__typename", "id", "bookId"), new ArrayList<>(((Map) data.get("b")).keySet()));
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      froid.handleFroidRequest(request, out);
+      assertEquals(new ObjectMapper().valueToTree(data), new ObjectMapper().readTree(out.toByteArray()).get("data"));
+    }
+  }
+
+  @Test
+  void testListener() throws IOException {
+    FroidMetrics metrics = new FroidMetrics();
+    Froid froid = Froid.builder()
+        .setListener(metrics)
+        .setNodeCacheSize(16)
+        .build();
+
+    Request entities = Request
+        .builder()
+        .setQuery("query ($representations:[_Any!]!) {"
+            + "_entities(representations:$representations){...on DemoBook{id}}"
+            + "}")
+        .setVariables(Collections.singletonMap("representations", Arrays.asList(
+            Collections.singletonMap("__typename", "DemoBook"),
+            Collections.singletonMap("__typename", "DemoAuthor"))))
+        .build();
+    Request nodes = Request
+        .builder()
+        .setQuery("query {"
+            + "a:node(id:\"" + DEMO_BOOK_1 + "\"){__typename}"
+            + "b:node(id:\"" + DEMO_BOOK_2 + "\"){__typename}"
+            + "c:node(id:\"" + DEMO_AUTHOR_1 + "\"){__typename}"
+            + "}")
+        .build();
+    Request invalid = Request.builder().setQuery("query {a:node(id:").build();
+
+    froid.handleFroidRequest(entities);
+    froid.handleFroidRequest(nodes);
+    froid.handleFroidRequest(nodes, new ByteArrayOutputStream());
+    froid.handleFroidRequest(invalid);
+    froid.handleFroidRequest("{\"query\":".getBytes(StandardCharsets.UTF_8), new ByteArrayOutputStream());
+
+    assertEquals(5, metrics.getRequests());
+    assertEquals(2, metrics.getFailedRequests());
+    assertEquals(5, metrics.getRequestDurations().getCount());
+    assertEquals(1, metrics.getErrors(ErrorCategory.INVALID_QUERY));
+    assertEquals(1, metrics.getErrors(ErrorCategory.INVALID_INPUT));
+
+    assertEquals(1, metrics.getEntityBatchSizes().getCount());
+    assertEquals(2, metrics.getEntityBatchSizes().getMax());
+    assertEquals(2, metrics.getNodeCounts().getCount());
+    assertEquals(6, metrics.getNodeCounts().getSum());
+
+    // the node query is compiled once, its ids are decoded once and then served from the node cache
+    assertEquals(1, metrics.getCacheHits(Cache.PLAN));
+    assertEquals(2, metrics.getCacheMisses(Cache.PLAN));
+    assertEquals(3, metrics.getCacheHits(Cache.NODE));
+    assertEquals(3, metrics.getCacheMisses(Cache.NODE));
+    assertEquals(0, metrics.getCacheMisses(Cache.ID));
+    assertEquals(1, metrics.getPhaseDurations(Phase.PARSE).getCount());
+    assertEquals(1, metrics.getPhaseDurations(Phase.DOCUMENT_PROVIDER).getCount());
+    assertEquals(1, metrics.getPhaseDurations(Phase.COMPILE).getCount());
+    assertEquals(2, metrics.getPhaseDurations(Phase.SERIALIZE).getCount());
+    assertEquals(2, metrics.getPhaseDurations(Phase.ENCODE).getCount());
+    assertEquals(3, metrics.getPhaseDurations(Phase.DECODE).getCount());
+    assertEquals(3, metrics.getPhaseDurations(Phase.DESERIALIZE).getCount());
+    assertEquals(5, metrics.getPhaseDurations(Phase.BASE64).getCount());
+
+    Histogram histogram = new Histogram();
+    for (long value : new long[]{0, 1, 3, 100, 1000}) {
+      histogram.record(value);
+    }
+    assertEquals(0, histogram.getPercentile(10));
+    assertEquals(3, histogram.getPercentile(60));
+    assertEquals(127, histogram.getPercentile(80));
+    assertEquals(1000, histogram.getPercentile(100));
+    assertEquals(1104, histogram.getSum());
+  }
+
+  @Test
+  void testQueryShapes() throws IOException {
+    Froid froid = Froid.builder().setQueryShapeRegistrySize(2).build();
+    String entitiesQuery = "query ($representations:[_Any!]!) {"
+        + "_entities(representations:$representations){...on DemoBook{id}}"
+        + "}";
+    String nodesQuery = "query ($a:ID!, $b:ID!) {"
+        + "a:node(id:$a){__typename}"
+        + "b:node(id:$b){__typename}"
+        + "}";
+
+    for (int size = 1; size <= 3; size++) {
+      List<Map<String, Object>> representations = new ArrayList<>();
+      for (int i = 0; i < size; i++) {
+        representations.add(Collections.singletonMap("__typename", "DemoBook"));
+      }
+      froid.handleFroidRequest(Request.builder()
+          .setQuery(entitiesQuery)
+          .setOperationName("books")
+          .setVariables(Collections.singletonMap("representations", representations))
+          .build());
+    }
+    Map<String, Object> variables = new HashMap<>();
+    variables.put("a", DEMO_BOOK_1);
+    variables.put("b", DEMO_BOOK_2);
+    froid.handleFroidRequest(Request.builder().setQuery(nodesQuery).setVariables(variables).build());
+    froid.handleFroidRequest(("{\"query\":\"" + nodesQuery + "\",\"operationName\":\"nodes\","
+        + "\"variables\":{\"a\":\"" + DEMO_BOOK_1 + "\",\"b\":\"not an id\"}}").getBytes(StandardCharsets.UTF_8),
+        new ByteArrayOutputStream());
+
+    List<QueryShapeStats> shapes = froid.getQueryShapes(10);
+    assertEquals(2, shapes.size());
+
+    QueryShapeStats entities = shapes.get(0);
+    assertEquals(entitiesQuery, entities.getQuery());
+    assertEquals("books", entities.getOperationName());
+    assertEquals(3, entities.getCalls());
+    assertEquals(0, entities.getFailures());
+    assertEquals(2.0, entities.getMeanRepresentations());
+    assertEquals(3, entities.getMaxRepresentations());
+    assertEquals(0, entities.getMaxNodes());
+    assertTrue(entities.getMaxLatencyNanos() > 0);
+
+    QueryShapeStats nodes = shapes.get(1);
+    assertEquals(nodesQuery, nodes.getQuery());
+    assertEquals("nodes", nodes.getOperationName());
+    assertEquals(2, nodes.getCalls());
+    assertEquals(1, nodes.getFailures());
+    assertEquals(2.0, nodes.getMeanNodes());
+
+    assertEquals(Collections.singletonList(entities.getQuery()),
+        froid.getQueryShapes(1).stream().map(QueryShapeStats::getQuery).collect(Collectors.toList()));
+    assertTrue(service.getQueryShapes(10).isEmpty());
+  }
+
+  @Test
+  void testHandleFroidRequests() {
+    AtomicInteger parsed = new AtomicInteger();
+    Froid froid = Froid.builder()
+        .setPlanCacheSize(0)
+        .setForkJoinPool(new ForkJoinPool(2))
+        .setParallelThreshold(1)
+        .setDocumentProvider((query, parseFunction) -> {
+          parsed.incrementAndGet();
+          return parseFunction.apply(query);
+        })
+        .build();
+
+    Request book = Request
+        .builder()
+        .setQuery("query ($id:ID!) {a:node(id:$id){__typename ...on DemoBook{bookId}}}")
+        .setVariables(Collections.singletonMap("id", DEMO_BOOK_1))
+        .build();
+    Request author = Request
+        .builder()
+        .setQuery("query ($id:ID!) {a:node(id:$id){__typename ...on DemoBook{bookId}}}")
+        .setVariables(Collections.singletonMap("id", DEMO_AUTHOR_1))
+        .build();
+    Request invalidId = Request
+        .builder()
+        .setQuery("query ($id:ID!) {a:node(id:$id){__typename ...on DemoBook{bookId}}}")
+        .setVariables(Collections.singletonMap("id", "not an id"))
+        .build();
+    Request invalidQuery = Request
+        .builder()
+        .setQuery("query {a:node(id:")
+        .build();
+    Request entities = Request
+        .builder()
+        .setQuery("query ($representations:[_Any!]!) {"
+            + "_entities(representations:$representations){...on DemoBook{id}}"
+            + "}")
+        .setVariables(Collections.singletonMap("representations", Collections.singletonList(
+            new HashMap<String, Object>() {{
+              put("__typename", "DemoBook");
+              put("bookId", 2);
+            }})))
+        .build();
+
+    List<BaseResponse> responses = froid.handleFroidRequests(
+        Arrays.asList(book, invalidQuery, author, entities, invalidId, book));
+
+    assertEquals(6, responses.size());
+    assertEquals(2, parsed.get());
+    assertEquals(DEMO_BOOK_1, ((Map) ((EntityObjectResponse) responses.get(0)).getData().get("a")).get("id"));
+    assertNull(((EntitiesResponse) responses.get(1)).getData());
+    assertEquals(1, responses.get(1).getErrors().size());
+    assertEquals(DEMO_AUTHOR_1, ((Map) ((EntityObjectResponse) responses.get(2)).getData().get("a")).get("id"));
+    assertEquals(Collections.singletonList(DEMO_BOOK_2), ids((EntitiesResponse) responses.get(3)));
+    assertNull(((EntityObjectResponse) responses.get(4)).getData().get("a"));
+    assertEquals(1, responses.get(4).getErrors().size());
+    assertEquals(DEMO_BOOK_1, ((Map) ((EntityObjectResponse) responses.get(5)).getData().get("a")).get("id"));
+    for (int i : new int[]{0, 2, 3, 5}) {
+      assertNull(responses.get(i).getErrors());
+    }    // a disabled plan cache counts no lookups
+    assertEquals(0, froid.getPlanCacheStats().getMisses());
+  }
+
+  @Test
+  void testHandleFroidRequestAsync() throws Exception {
+    ExecutorService codecThread = Executors.newSingleThreadExecutor();
+    ExecutorService requestThread = Executors.newSingleThreadExecutor();
+    AtomicInteger parsed = new AtomicInteger();
+    try {
+      Froid froid = Froid.builder()
+          .setExecutor(requestThread)
+          .setCodec(new AsyncCodec() {
+            @Override
+            public CompletableFuture<byte[]> encodeAsync(byte[] decoded) {
+              return CompletableFuture.supplyAsync(() -> decoded, codecThread);
+            }
+
+            @Override
+            public CompletableFuture<byte[]> decodeAsync(byte[] encoded) {
+              return CompletableFuture.supplyAsync(() -> encoded, codecThread);
+            }
+          })
+          .setCodec("DemoAuthor", new AsyncCodec() {
+            @Override
+            public CompletableFuture<byte[]> encodeAsync(byte[] decoded) {
+              return CompletableFuture.supplyAsync(() -> decoded, codecThread);
+            }
+
+            @Override
+            public CompletableFuture<byte[]> decodeAsync(byte[] encoded) {
+              return CompletableFuture.supplyAsync(() -> {
+                throw new IllegalArgumentException("revoked");
+              }, codecThread);
+            }
+          })
+          .setDocumentProvider((AsyncDocumentProvider) (query, parseFunction) -> CompletableFuture.supplyAsync(() -> {
+            parsed.incrementAndGet();
+            return parseFunction.apply(query);
+          }, codecThread))
+          .build();
+
+      Request entities = Request
+          .builder()
+          .setQuery("query ($representations:[_Any!]!) {"
+              + "_entities(representations:$representations){...on DemoBook{id}}"
+              + "}")
+          .setVariables(Collections.singletonMap("representations", Arrays.asList(
+              Collections.singletonMap("__typename", "DemoBook"),
+              new HashMap<String, Object>() {{
+                put("__typename", "DemoBook");
+                put("bookId", 1);
+              }},
+              new HashMap<String, Object>() {{
+                put("__typename", "DemoBook");
+                put("bookId", 2);
+              }})))
+          .build();
+      BaseResponse response = froid.handleFroidRequestAsync(entities).get();
+      assertEquals(ids((EntitiesResponse) service.handleFroidRequest(entities)), ids((EntitiesResponse) response));
+      assertEquals(Arrays.asList(DEMO_BOOK_1, DEMO_BOOK_2), ids((EntitiesResponse) response).subList(1, 3));
+
+      Request nodes = Request
+          .builder()
+          .setQuery("query {"
+              + "a:node(id:\"" + DEMO_BOOK_1 + "\"){__typename ...on DemoBook{bookId}}"
+              + "b:node(id:\"" + DEMO_BOOK_2 + "\"){__typename ...on DemoBook{bookId}}"
+              + "}")
+          .build();
+      for (int i = 0; i < 2; i++) {
+        Map<String, Object> data = ((EntityObjectResponse) froid.handleFroidRequestAsync(nodes).get()).getData();
+        assertEquals(new ObjectMapper().readTree("{"
+                + "\"a\":{\"bookId\":1,\"__typename\":\"DemoBook\",\"id\":\"" + DEMO_BOOK_1 + "\"},"
+                + "\"b\":{\"bookId\":2,\"__typename\":\"DemoBook\",\"id\":\"" + DEMO_BOOK_2 + "\"}}"),
+            new ObjectMapper().valueToTree(data));
+      }
+      assertEquals(1, parsed.get());
+
+      Request revoked = Request
+          .builder()
+          .setQuery("query {a:node(id:\"" + DEMO_AUTHOR_4 + "\"){__typename}}")
+          .build();
+      response = froid.handleFroidRequestAsync(revoked).get();
+      assertNull(((EntityObjectResponse) response).getData().get("a"));
+      assertTrue(response.getErrors().get(0).getMessage().contains("revoked"));
+      assertEquals(Collections.singletonList("a"), response.getErrors().get(0).getPath());
+
+      // without async hooks the synchronous handler runs on the executor
+      response = Froid.builder().setExecutor(requestThread).build().handleFroidRequestAsync(nodes).get();
+      assertEquals(DEMO_BOOK_2, ((Map) ((EntityObjectResponse) response).getData().get("b")).get("id"));
+    } finally {
+      codecThread.shutdown();
+      requestThread.shutdown();
+    }
+  }
+
+  @Test
+  void testWarmUp() throws Exception {
+    Set<String> parsed = ConcurrentHashMap.newKeySet();
+    AtomicInteger encoded = new AtomicInteger();
+    AtomicInteger decoded = new AtomicInteger();
+    AtomicInteger reported = new AtomicInteger();
+    String preloaded = "query ($id:ID!) {a:node(id:$id){__typename}}";
+    Request entities = Request
+        .builder()
+        .setQuery("query ($representations:[_Any!]!) {"
+            + "_entities(representations:$representations){...on DemoBook{id}}"
+            + "}")
+        .setVariables(Collections.singletonMap("representations", Collections.singletonList(
+            new HashMap<String, Object>() {{
+              put("__typename", "DemoBook");
+              put("bookId", 1);
+            }})))
+        .build();
+    Request nodes = Request
+        .builder()
+        .setQuery("query {a:node(id:\"" + DEMO_AUTHOR_1 + "\"){__typename}}")
+        .build();
+
+    Froid froid = Froid.builder()
+        .setCodec(new Codec() {
+          @Override
+          public byte[] encode(byte[] decoded) {
+            encoded.incrementAndGet();
+            return decoded;
+          }
+
+          @Override
+          public byte[] decode(byte[] encoded) {
+            decoded.incrementAndGet();
+            return encoded;
+          }
+        })
+        .setDocumentProvider((query, parseFunction) -> {
+          parsed.add(query);
+          return parseFunction.apply(query);
+        })
+        .setWarmUpQueries(Arrays.asList(preloaded, "query {a:node(id:"))
+        .setWarmUpRequests(Arrays.asList(entities, nodes))
+        .setWarmUpIterations(3)
+        .setListener(new FroidListener() {
+          @Override
+          public void onRequest(long durationNanos, boolean failed) {
+            reported.incrementAndGet();
+          }
+        })
+        .setQueryShapeRegistrySize(16)
+        .build();
+    froid.getWarmUp().get(10, TimeUnit.SECONDS);
+
+    // three rounds of the model, streaming and raw body handlers, plus the first call for the ids to decode
+    assertEquals(10, encoded.get());
+    assertEquals(18, decoded.get());
+    assertTrue(parsed.contains(preloaded));
+    assertTrue(parsed.contains(nodes.getQuery()));
+    // the node query over the generated id and the two compiled queries
+    assertEquals(3, froid.getPlanCacheStats().getSize());
+    assertEquals(4, parsed.size());
+    // warm-up isn't traffic
+    froid.warmUp(Collections.singletonList(nodes), 1);
+    assertTrue(froid.getQueryShapes(16).isEmpty());
+    assertEquals(0, reported.get());
+    assertEquals(0, froid.getPlanCacheStats().getHits() + froid.getPlanCacheStats().getMisses());
+
+    // a preloaded query is served from the plan cache
+    Object response = froid.handleFroidRequest(Request.builder()
+        .setQuery(preloaded)
+        .setVariables(Collections.singletonMap("id", DEMO_BOOK_1))
+        .build());
+    assertEquals(DEMO_BOOK_1, ((Map) ((EntityObjectResponse) response).getData().get("a")).get("id"));
+    assertEquals(4, parsed.size());
+
+    assertEquals(1, froid.preloadQueries(Collections.singletonList(nodes.getQuery())));
+    assertThrows(IllegalArgumentException.class, () -> froid.warmUp(Collections.singletonList(nodes), 0));
+    assertTrue(service.getWarmUp().isDone());
+    CompletableFuture<Void> failed = Froid.builder()
+        .setWarmUpRequests(Collections.singletonList(null))
+        .build()
+        .getWarmUp();
+    assertThrows(ExecutionException.class, () -> failed.get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void testStreamingErrors() throws IOException {
+    Request request = Request
+        .builder()
+        .setQuery("query author__node_relay_service__0($nodeId:ID!$nodeId2:ID!) {"
+            + "a:node(id:$nodeId){__typename ...on DemoAuthor{__typename authorId}}"
+            + "b:node(id:$nodeId2){__typename ...on DemoAuthor{__typename authorId}}"
+            + "}")
+        .setVariables(new HashMap<String, Object>() {{
+          put("nodeId", DEMO_AUTHOR_4);
+          put("nodeId2", "RGVtb0F1dGhvcjp7ImF1dGhvcklkIjasdfo0fQ==");
+        }})
+        .build();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    service.handleFroidRequest(request, out);
+
+    JsonNode streamed = new ObjectMapper().readTree(out.toByteArray());
+    assertEquals(1, streamed.get("errors").size());
+    assertTrue(streamed.has("data"));
+  }
+
+  @Test
+  void testRequestBodyMatchesModel() throws IOException {
+    ObjectMapper mapper = new ObjectMapper();
+    String[] bodies = {
+        "{\"query\":\"query booksByGenre__node_relay_service__1($representations:[_Any!]!) {"
+            + "_entities(representations:$representations){...on DemoBook{id}}}\","
+            + "\"variables\":{\"representations\":["
+            + "{\"__typename\":\"DemoBook\",\"bookId\":1},"
+            + "{\"isbn\":\"978-3\\u00e9\",\"__typename\":\"DemoEdition\",\"edition\":2.5,"
+            + "\"bookId\":12345678901234,\"zeta\":[1,{\"b\":null,\"a\":true}],\"alpha\":{\"y\":1,\"x\":2}}"
+            + "]}}",
+        "{\"variables\":{\"nodeId\":\"" + DEMO_AUTHOR_4 + "\"},"
+            + "\"query\":\"query author__node_relay_service__0($nodeId:ID!) {"
+            + "a:node(id:$nodeId){__typename ...on DemoAuthor{__typename authorId}}"
+            + "b:node(id:\\\"" + DEMO_BOOK_2 + "\\\"){__typename ...on DemoBook{__typename bookId}}}\","
+            + "\"operationName\":\"author__node_relay_service__0\"}",
+    };
+
+    for (String body : bodies) {
+      byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      service.handleFroidRequest(bytes, out);
+      ByteArrayOutputStream streamedOut = new ByteArrayOutputStream();
+      service.handleFroidRequest(new ByteArrayInputStream(bytes), streamedOut);
+      ByteArrayOutputStream bufferOut = new ByteArrayOutputStream();
+      ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+      buffer.put(bytes);
+      buffer.flip();
+      service.handleFroidRequest(buffer, bufferOut);
+
+      JsonNode streamed = mapper.readTree(out.toByteArray());
+      JsonNode model = mapper.valueToTree(service.handleFroidRequest(mapper.readValue(body, Request.class)));
+
+      assertEquals(model.get("data"), streamed.get("data"), body);
+      assertArrayEquals(out.toByteArray(), streamedOut.toByteArray());
+      assertArrayEquals(out.toByteArray(), bufferOut.toByteArray());
+    }
+  }
+
+  @Test
+  void testGlobalIdsMatchBase64() {
+    GlobalIds globalIds = new GlobalIds();
+    Random random = new Random(42);
+    for (int length = 0; length < 64; length++) {
+      byte[] id = new byte[length];
+      random.nextBytes(id);
+      String typeName = length % 2 == 0 ? "DemoBook" : "D\u00e9moAuthor" + length;
+
+      String expected = service.toGlobalId(typeName, Base64.getEncoder().encodeToString(id));
+      assertEquals(expected, globalIds.encode(typeName, id, 0, id.length));
+
+      GlobalIds.Parsed parsed = globalIds.decode(expected);
+      assertEquals(service.fromGlobalId(expected).getType(), parsed.typeName());
+      assertArrayEquals(id, Arrays.copyOf(parsed.id(), parsed.idLength()));
+    }
+
+    String[] invalid = {"a", "ab=", "abc=d", "ab==c", "ab c", "=abc", "RGVtb0F1dGhvcg==", "RGVtb0F1dGhvcjp7fQ=="};
+    for (String globalId : invalid) {
+      assertNull(globalIds.decode(globalId), globalId);
+    }
+    assertEquals("DemoAuthor", globalIds.decode("RGVtb0F1dGhvcjplMzA").typeName());
+  }
+
+  @Test
+  void testBufferCodecMatchesCodec() {
+    BufferCodec xor = new BufferCodec() {
+      @Override
+      public int maxEncodedLength(int decodedLength) {
+        return decodedLength;
+      }
+
+      @Override
+      public int maxDecodedLength(int encodedLength) {
+        return encodedLength;
+      }
+
+      @Override
+      public void encode(ByteBuffer src, ByteBuffer dst) {
+        while (src.hasRemaining()) {
+          dst.put((byte) (src.get() ^ 0x5a));
+        }
+      }
+
+      @Override
+      public boolean decode(ByteBuffer src, ByteBuffer dst) {
+        encode(src, dst);
+        return true;
+      }
+    };
+    Codec legacy = new Codec() {
+      @Override
+      public byte[] encode(byte[] decoded) {
+        return xor.encode(decoded);
+      }
+
+      @Override
+      public byte[] decode(byte[] encoded) {
+        return xor.decode(encoded);
+      }
+    };
+    Froid buffered = Froid.builder().setCodec(xor).build();
+    Froid arrays = Froid.builder().setCodec(legacy).build();
+
+    List<Map<String, Object>> representations = Collections.singletonList(new HashMap<String, Object>() {{
+      put("__typename", "DemoBook");
+      put("bookId", 1);
+    }});
+    String id = buffered.generateEntityObjectWithId(representations).getData().getEntities().get(0).getId();
+    assertEquals(id, arrays.generateEntityObjectWithId(representations).getData().getEntities().get(0).getId());
+
+    Request request = Request
+        .builder()
+        .setQuery("query author__node_relay_service__0 {node(id:\"" + id + "\"){__typename}}")
+        .build();
+    for (Froid froid : new Froid[]{buffered, arrays}) {
+      EntityObjectResponse response = (EntityObjectResponse) froid.handleFroidRequest(request);
+      assertEquals(1, ((Map) response.getData().get("node")).get("bookId"));
+    }
+  }
+
+  @Test
+  void testBinaryKeysMatchJson() throws IOException {
+    Froid json = Froid.builder().build();
+    Froid binary = Froid.builder().setKeyFormat(KeyFormat.BINARY).build();
+    Froid declared = Froid.builder().setKeyFormat(KeyFormat.BINARY).setKeyFields("DemoBook", "bookId").build();
+    Froid redeclared = Froid.builder().setKeyFields("DemoBook", "isbn").build();
+
+    String body = "{\"variables\":{\"representations\":["
+        + "{\"__typename\":\"DemoAuthor\",\"authorId\":-7,\"big\":12345678901,\"huge\":123456789012345678901234,"
+        + "\"ratio\":0.25,\"name\":\"D\u00e9mo\",\"active\":true,"
+        + "\"nested\":{\"tags\":[\"a\",1,[]]}},"
+        + "{\"__typename\":\"DemoBook\",\"bookId\":1}]}}";
+    List<Map<String, Object>> representations = (List<Map<String, Object>>) ((Map) new ObjectMapper()
+        .readValue(body, Map.class).get("variables")).get("representations");
+    representations.add(new HashMap<String, Object>() {{
+      put("__typename", "DemoBook");
+      put("bookId", 1.5f);
+    }});
+
+    List<String> jsonIds = ids(json.generateEntityObjectWithId(representations));
+    List<String> binaryIds = ids(binary.generateEntityObjectWithId(representations));
+    List<String> declaredIds = ids(declared.generateEntityObjectWithId(representations));
+    assertTrue(binaryIds.get(0).length() < jsonIds.get(0).length());
+    assertTrue(declaredIds.get(1).length() < binaryIds.get(1).length());
+    // a float has no exact binary form, the keys stay JSON
+    assertEquals(jsonIds.get(2), binaryIds.get(2));
+
+    ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+    declared.handleFroidRequest(body.getBytes(StandardCharsets.UTF_8), streamed);
+    assertEquals(declaredIds.subList(0, 2), ids(new ObjectMapper().readValue(streamed.toByteArray(),
+        EntitiesResponse.class)));
+
+    Map<String, Object> variables = new HashMap<>();
+    variables.put("json", jsonIds.get(0));
+    variables.put("binary", binaryIds.get(0));
+    variables.put("book", declaredIds.get(1));
+    Request request = Request.builder()
+        .setQuery("query ($json:ID!,$binary:ID!,$book:ID!) "
+            + "{json:node(id:$json){__typename} binary:node(id:$binary){__typename} book:node(id:$book){__typename}}")
+        .setVariables(variables)
+        .build();
+    // positional ids need the declared key fields, named ids are read by any instance
+    variables.put("book", binaryIds.get(1));
+    for (Froid froid : new Froid[]{json, binary}) {
+      Map<String, Object> data = ((EntityObjectResponse) froid.handleFroidRequest(request)).getData();
+      Map<String, Object> fromJson = (Map<String, Object>) data.get("json");
+      Map<String, Object> fromBinary = (Map<String, Object>) data.get("binary");
+      fromJson.remove("id");
+      fromBinary.remove("id");
+      assertEquals(fromJson, fromBinary);
+      for (String field : fromJson.keySet()) {
+        assertEquals(type(fromJson.get(field)), type(fromBinary.get(field)), field);
+      }
+      assertEquals(1, ((Map) data.get("book")).get("bookId"));
+    }
+
+    variables.put("book", declaredIds.get(1));
+    Map<String, Object> data = ((EntityObjectResponse) declared.handleFroidRequest(request)).getData();
+    assertEquals(1, ((Map) data.get("book")).get("bookId"));
+    // and can't be read once the declared key fields change
+    EntityObjectResponse rejected = (EntityObjectResponse) redeclared.handleFroidRequest(request);
+    assertNull(rejected.getData().get("book"));
+    assertEquals(1, rejected.getErrors().size());
+  }
+
+  @Test
+  void testRedeclaredKeyFieldsRejectOldIds() {
+    // both lists shared a one byte checksum before the fingerprint was widened
+    Froid declared = Froid.builder().setKeyFormat(KeyFormat.BINARY).setKeyFields("DemoBook", "bookId", "isbn").build();
+    Froid redeclared = Froid.builder().setKeyFormat(KeyFormat.BINARY)
+        .setKeyFields("DemoBook", "bookId", "edition").build();
+    Map<String, Object> representation = new HashMap<>();
+    representation.put("__typename", "DemoBook");
+    representation.put("bookId", 1);
+    representation.put("isbn", "0-306-40615-2");
+    String id = ids(declared.generateEntityObjectWithId(Collections.singletonList(representation))).get(0);
+
+    Request request = Request.builder().setQuery("{node(id:\"" + id + "\"){__typename}}").build();
+    EntityObjectResponse accepted = (EntityObjectResponse) declared.handleFroidRequest(request);
+    assertEquals("0-306-40615-2", ((Map) accepted.getData().get("node")).get("isbn"));
+    EntityObjectResponse rejected = (EntityObjectResponse) redeclared.handleFroidRequest(request);
+    assertNull(rejected.getData().get("node"));
+    assertEquals(1, rejected.getErrors().size());
+  }
+
+  @Test
+  void testRawNodeAsString() throws IOException {
+    ObjectMapper mapper = new ObjectMapper();
+    byte[] keys = "{\"name\":\"D\u00e9mo \ud83d\udcda\"}".getBytes(StandardCharsets.UTF_8);
+    RawNode node = RawNode.splice(mapper.getFactory(), keys, 0, keys.length, "DemoBook", "id\"1");
+    assertEquals(node.getValue().length(), node.charLength());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
+      generator.writeStartArray();
+      generator.writeRawValue(node);
+      generator.writeString(node);
+      generator.writeEndArray();
+    }
+    JsonNode written = mapper.readTree(out.toByteArray());
+    assertEquals("D\u00e9mo \ud83d\udcda", written.get(0).get("name").asText());
+    assertEquals(written.get(0), mapper.readTree(written.get(1).asText()));
+  }
+
+  @Test
+  void testIdAndNodeCaches() {
+    AtomicInteger encodes = new AtomicInteger();
+    AtomicInteger decodes = new AtomicInteger();
+    Froid cached = Froid.builder()
+        .setCodec(new Codec() {
+          @Override
+          public byte[] encode(byte[] decoded) {
+            encodes.incrementAndGet();
+            return decoded;
+          }
+
+          @Override
+          public byte[] decode(byte[] encoded) {
+            decodes.incrementAndGet();
+            return encoded;
+          }
+        })
+        .setIdCacheSize(16)
+        .setNodeCacheSize(16)
+        .build();
+
+    List<Map<String, Object>> representations = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      representations.add(new HashMap<String, Object>() {{
+        put("__typename", "DemoBook");
+        put("bookId", 1);
+      }});
+    }
+    List<String> ids = ids(cached.generateEntityObjectWithId(representations));
+    assertEquals(ids(service.generateEntityObjectWithId(representations)), ids);
+    representations.get(0).put("bookId", 2);
+    assertEquals(ids.get(1), ids(cached.generateEntityObjectWithId(representations)).get(1));
+    assertEquals(2, encodes.get());
+    assertEquals(4, cached.getIdCacheStats().getHits());
+    assertEquals(2, cached.getIdCacheStats().getMisses());
+
+    Request request = Request.builder()
+        .setQuery("query ($nodeId:ID!) {a:node(id:$nodeId){__typename} b:node(id:$nodeId){__typename}}")
+        .setVariables(Collections.singletonMap("nodeId", ids.get(0)))
+        .build();
+    Map<String, Object> data = ((EntityObjectResponse) cached.handleFroidRequest(request)).getData();
+    ((Map) data.get("a")).put("bookId", 3);
+    assertEquals(1, ((Map) data.get("b")).get("bookId"));
+    data = ((EntityObjectResponse) cached.handleFroidRequest(request)).getData();
+    assertEquals(1, ((Map) data.get("a")).get("bookId"));
+    assertEquals(1, decodes.get());
+    assertEquals(3, cached.getNodeCacheStats().getHits());
+    assertEquals(1, cached.getPlanCacheStats().getHits());
+  }
+
+  @Test
+  void testBoundedCacheKeepsFrequentEntries() {
+    BoundedCache<Integer, Integer> cache = new BoundedCache<>(100);
+    int hotLookups = 0;
+    int hotHits = 0;
+    for (int cold = 1000; cold < 11_000; cold++) {
+      for (int hot = 0; hot < 5; hot++) {
+        hotLookups++;
+        if (cache.getIfPresent(hot) != null) {
+          hotHits++;
+        } else {
+          cache.put(hot, hot);
+        }
+      }
+      cache.get(cold, key -> key);
+    }
+
+    assertEquals(100, cache.size());
+    assertTrue(hotHits > hotLookups * 0.99, hotHits + " of " + hotLookups);
+    assertEquals(10_000 + 5 - 100, cache.stats().getEvictions(), 5);
+    assertThrows(IllegalArgumentException.class, () -> new BoundedCache<>(-1));
+  }
+
+  private static List<String> ids(EntitiesResponse response) {
+    List<String> ids = new ArrayList<>();
+    response.getData().getEntities().forEach(entity -> ids.add(entity == null ? null : entity.getId()));
+    return ids;
+  }
+
+  private static Class<?> type(Object value) {
+    return value == null ? null : value.getClass();
+  }
+
   @Test
   void testErrors() {
     Request request = Request
@@ -158,8 +1289,75 @@ class FroidTest {
         .setOperationName("author__node_relay_service__0")
         .build();
 
-    EntitiesResponse response = (EntitiesResponse) service.handleFroidRequest(request);
+    EntityObjectResponse response = (EntityObjectResponse) service.handleFroidRequest(request);
     assertEquals(1, response.getErrors().size());
+    assertEquals(Collections.singletonList("a"), response.getErrors().get(0).getPath());
+    assertNull(response.getData().get("a"));
+  }
+
+  @Test
+  void testEntryErrors() throws Exception {
+    FroidMetrics metrics = new FroidMetrics();
+    Froid froid = Froid.builder().setListener(metrics).build();
+    ObjectMapper mapper = new ObjectMapper();
+
+    Map<String, Object> variables = new HashMap<>();
+    variables.put("a", DEMO_BOOK_1);
+    variables.put("b", "not an id");
+    variables.put("c", "RGVtb0F1dGhvcjp7fQ==");
+    variables.put("d", DEMO_AUTHOR_4);
+    Request nodes = Request
+        .builder()
+        .setQuery("query ($a:ID!, $b:ID!, $c:ID!, $d:ID!) {"
+            + "a:node(id:$a){__typename} b:node(id:$b){__typename}"
+            + "c:node(id:$c){__typename} d:node(id:$d){__typename}"
+            + "}")
+        .setVariables(variables)
+        .build();
+    EntityObjectResponse response = (EntityObjectResponse) froid.handleFroidRequest(nodes);
+    assertEquals(DEMO_BOOK_1, ((Map) response.getData().get("a")).get("id"));
+    assertEquals(DEMO_AUTHOR_4, ((Map) response.getData().get("d")).get("id"));
+    assertNull(response.getData().get("b"));
+    assertNull(response.getData().get("c"));
+    assertEquals(Arrays.asList(Collections.singletonList("b"), Collections.singletonList("c")),
+        response.getErrors().stream().map(Error::getPath).sorted(Comparator.comparing(Object::toString))
+            .collect(Collectors.toList()));
+    assertEquals(2, metrics.getErrors(ErrorCategory.INVALID_INPUT));
+    assertEquals(1, metrics.getFailedRequests());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    froid.handleFroidRequest(nodes, out);
+    assertEquals(mapper.valueToTree(response.getData()), mapper.readTree(out.toByteArray()).get("data"));
+    assertEquals(2, mapper.readTree(out.toByteArray()).get("errors").size());
+    response = (EntityObjectResponse) froid.handleFroidRequestAsync(nodes).get();
+    assertNull(response.getData().get("b"));
+    assertEquals(2, response.getErrors().size());
+
+    Map<String, Object> book = new HashMap<>();
+    book.put("__typename", "DemoBook");
+    book.put("bookId", 2);
+    Request entities = Request
+        .builder()
+        .setQuery("query ($representations:[_Any!]!) {"
+            + "_entities(representations:$representations){...on DemoBook{id}}"
+            + "}")
+        .setVariables(Collections.singletonMap("representations",
+            Arrays.asList(Collections.singletonMap("bookId", 1), book, null)))
+        .build();
+    EntitiesResponse entitiesResponse = (EntitiesResponse) froid.handleFroidRequest(entities);
+    assertEquals(Arrays.asList(null, DEMO_BOOK_2, null), ids(entitiesResponse));
+    assertEquals(Arrays.asList(Arrays.asList("_entities", 0), Arrays.asList("_entities", 2)),
+        entitiesResponse.getErrors().stream().map(Error::getPath).collect(Collectors.toList()));
+
+    String body = mapper.writeValueAsString(entities);
+    for (Froid streaming : new Froid[]{froid, Froid.builder().setKeyFormat(KeyFormat.BINARY).build()}) {
+      JsonNode expected = mapper.valueToTree(streaming.handleFroidRequest(entities));
+      out = new ByteArrayOutputStream();
+      streaming.handleFroidRequest(body.getBytes(StandardCharsets.UTF_8), out);
+      JsonNode streamed = mapper.readTree(out.toByteArray());
+      assertEquals(expected.get("data"), streamed.get("data"));
+      assertEquals(mapper.readTree("[\"_entities\",2]"), streamed.get("errors").get(1).get("path"));
+    }
   }
 
 }
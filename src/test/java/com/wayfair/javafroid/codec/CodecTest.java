@@ -0,0 +1,350 @@
+package com.wayfair.javafroid.codec;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wayfair.javafroid.Codec;
+import com.wayfair.javafroid.Froid;
+import com.wayfair.javafroid.KeyFormat;
+import com.wayfair.javafroid.model.EntitiesResponse;
+import com.wayfair.javafroid.model.EntityObjectResponse;
+import com.wayfair.javafroid.model.Request;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CodecTest {
+
+  private static final byte[] KEY = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] BOOK = "{\"bookId\":1}".getBytes(StandardCharsets.UTF_8);
+
+  @Test
+  void testAesGcmRoundTrip() {
+    AesGcmCodec codec = new AesGcmCodec(KEY);
+
+    byte[] encoded = codec.encode(BOOK);
+    assertEquals(codec.maxEncodedLength(BOOK.length), encoded.length);
+    assertArrayEquals(BOOK, codec.decode(encoded));
+    assertArrayEquals(BOOK, new AesGcmCodec(KEY).decode(encoded));
+    assertNotEquals(Arrays.toString(encoded), Arrays.toString(codec.encode(BOOK)));
+    assertEquals(0, codec.decode(codec.encode(new byte[0])).length);
+  }
+
+  @Test
+  void testAesGcmRejectsTampering() {
+    AesGcmCodec codec = new AesGcmCodec(KEY);
+    byte[] encoded = codec.encode(BOOK);
+    encoded[encoded.length - 1] ^= 1;
+
+    assertThrows(IllegalArgumentException.class, () -> codec.decode(encoded));
+    assertThrows(IllegalArgumentException.class, () -> codec.decode(new byte[4]));
+    assertThrows(IllegalArgumentException.class,
+        () -> new AesGcmCodec("fedcba9876543210".getBytes(StandardCharsets.US_ASCII)).decode(codec.encode(BOOK)));    // Froid decodes through the buffer methods, which reject with a result instead of an exception
+    assertFalse(codec.decode("DemoBook", ByteBuffer.wrap(encoded), ByteBuffer.allocate(encoded.length)));
+  }
+
+  @Test
+  void testAesGcmUniqueNoncesAcrossThreads() {
+    AesGcmCodec codec = new AesGcmCodec(KEY);
+    Set<String> nonces = ConcurrentHashMap.newKeySet();
+
+    IntStream.range(0, 20_000).parallel().forEach(i -> {
+      byte[] encoded = codec.encode(BOOK);
+      nonces.add(Arrays.toString(Arrays.copyOf(encoded, 12)));
+    });
+
+    assertEquals(20_000, nonces.size());
+
+    // instances sharing a key don't start counting from the same value
+    assertNotEquals(Arrays.toString(Arrays.copyOfRange(new AesGcmCodec(KEY).encode(BOOK), 4, 12)),
+        Arrays.toString(Arrays.copyOfRange(new AesGcmCodec(KEY).encode(BOOK), 4, 12)));
+  }
+
+  @Test
+  void testFroidWithAesGcm() {
+    Froid froid = Froid.builder().setCodec(new AesGcmCodec(KEY)).build();
+
+    List<Map<String, Object>> representations = new ArrayList<>();
+    representations.add(new HashMap<String, Object>() {{
+      put("__typename", "DemoBook");
+      put("bookId", 1);
+    }});
+    String id = froid.generateEntityObjectWithId(representations).getData().getEntities().get(0).getId();
+
+    Request request = Request.builder()
+        .setQuery("query book__node_relay_service__0($nodeId:ID!) {node(id:$nodeId){__typename}}")
+        .setVariables(Collections.singletonMap("nodeId", id))
+        .build();
+    EntityObjectResponse response = (EntityObjectResponse) froid.handleFroidRequest(request);
+
+    assertEquals(1, ((Map) response.getData().get("node")).get("bookId"));
+    assertEquals("DemoBook", ((Map) response.getData().get("node")).get("__typename"));
+  }
+
+  @Test
+  void testHmacRoundTrip() {
+    HmacCodec codec = new HmacCodec(KEY);
+
+    byte[] encoded = codec.encode(BOOK);
+    assertEquals(BOOK.length + 16, encoded.length);
+    assertArrayEquals(BOOK, Arrays.copyOf(encoded, BOOK.length));
+    assertArrayEquals(encoded, codec.encode(BOOK));
+    assertArrayEquals(BOOK, new HmacCodec(KEY).decode(encoded));
+    assertEquals(BOOK.length + 8, new HmacCodec(KEY, 8).encode(BOOK).length);
+    assertThrows(IllegalArgumentException.class, () -> new HmacCodec(KEY, 4));
+  }
+
+  @Test
+  void testHmacRejectsTampering() {
+    HmacCodec codec = new HmacCodec(KEY);
+    byte[] forged = codec.encode(BOOK);
+    forged[8] = '2';
+
+    assertThrows(IllegalArgumentException.class, () -> codec.decode(forged));
+    assertThrows(IllegalArgumentException.class, () -> codec.decode(Arrays.copyOf(BOOK, 8)));
+    assertThrows(IllegalArgumentException.class,
+        () -> new HmacCodec("fedcba9876543210".getBytes(StandardCharsets.US_ASCII)).decode(codec.encode(BOOK)));    assertFalse(codec.decode(ByteBuffer.wrap(forged), ByteBuffer.allocate(forged.length)));
+  }
+
+  @Test
+  void testTypeSwappedIdsRejected() {
+    for (Codec codec : Arrays.asList(new HmacCodec(KEY), new AesGcmCodec(KEY))) {
+      Froid froid = Froid.builder().setCodec(codec).build();
+      String id = froid.generateEntityObjectWithId(Collections.singletonList(new HashMap<String, Object>() {{
+        put("__typename", "PublicThing");
+        put("thingId", 1);
+      }})).getData().getEntities().get(0).getId();
+      // the same signed payload, relabelled
+      String swapped = froid.toGlobalId("AdminThing", froid.fromGlobalId(id).getId());
+
+      Request request = Request.builder()
+          .setQuery("query ($a:ID!, $b:ID!) {a:node(id:$a){__typename} b:node(id:$b){__typename}}")
+          .setVariables(new HashMap<String, Object>() {{
+            put("a", id);
+            put("b", swapped);
+          }})
+          .build();
+      EntityObjectResponse response = (EntityObjectResponse) froid.handleFroidRequest(request);
+      assertEquals("PublicThing", ((Map) response.getData().get("a")).get("__typename"));
+      assertNull(response.getData().get("b"));
+      assertEquals(Collections.singletonList("b"), response.getErrors().get(0).getPath());
+    }
+  }
+
+  @Test
+  void testFroidPerTypeCodecs() {
+    Froid plain = Froid.builder().build();
+    Froid froid = Froid.builder()
+        .setCodec("DemoBook", new HmacCodec(KEY))
+        .setCodec("DemoSecret", new AesGcmCodec(KEY))
+        .build();
+
+    List<Map<String, Object>> representations = new ArrayList<>();
+    for (String typeName : Arrays.asList("DemoAuthor", "DemoBook", "DemoSecret")) {
+      representations.add(new HashMap<String, Object>() {{
+        put("__typename", typeName);
+        put("bookId", 1);
+      }});
+    }
+    EntitiesResponse entities = froid.generateEntityObjectWithId(representations);
+    EntitiesResponse plainEntities = plain.generateEntityObjectWithId(representations);
+
+    String author = entities.getData().getEntities().get(0).getId();
+    String book = entities.getData().getEntities().get(1).getId();
+    String secret = entities.getData().getEntities().get(2).getId();
+    assertEquals(plainEntities.getData().getEntities().get(0).getId(), author);
+    assertNotEquals(plainEntities.getData().getEntities().get(1).getId(), book);
+    assertTrue(new String(Base64.getDecoder().decode(froid.fromGlobalId(book).getId()), StandardCharsets.UTF_8)
+        .startsWith("{\"bookId\":1}"));
+
+    Map<String, Object> variables = new HashMap<>();
+    variables.put("author", author);
+    variables.put("book", book);
+    variables.put("secret", secret);
+    Request request = Request.builder()
+        .setQuery("query ($author:ID!,$book:ID!,$secret:ID!) "
+            + "{a:node(id:$author){__typename} b:node(id:$book){__typename} s:node(id:$secret){__typename}}")
+        .setVariables(variables)
+        .build();
+    EntityObjectResponse response = (EntityObjectResponse) froid.handleFroidRequest(request);
+    for (String alias : Arrays.asList("a", "b", "s")) {
+      assertEquals(1, ((Map) response.getData().get(alias)).get("bookId"));
+    }
+
+    // an unsigned id for a signed type is rejected
+    variables.put("book", plainEntities.getData().getEntities().get(1).getId());
+    response = (EntityObjectResponse) froid.handleFroidRequest(request);
+    assertNull(response.getData().get("b"));
+    assertEquals(Collections.singletonList("b"), response.getErrors().get(0).getPath());
+    assertEquals(1, ((Map) response.getData().get("s")).get("bookId"));
+  }
+
+  @Test
+  void testDeflateRoundTrip() {
+    List<Map<String, Object>> samples = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      samples.add(Collections.singletonMap("bookId", i));
+      samples.add(new HashMap<String, Object>() {{
+        put("__typename", "DemoAuthor");
+        put("authorId", 1);
+        put("authorName", "Jane");
+      }});
+    }
+    byte[] dictionary = DeflateCodec.train(new ObjectMapper(), samples);
+    assertEquals("{\"authorName\":\"\",\"authorId\":}{\"bookId\":}".length(), dictionary.length);
+    DeflateCodec codec = DeflateCodec.builder().setDictionary(1, dictionary).build();
+
+    byte[] author = "{\"authorName\":\"Tolkien\",\"authorId\":42}".getBytes(StandardCharsets.UTF_8);
+    for (byte[] keys : Arrays.asList(BOOK, author)) {
+      byte[] encoded = codec.encode(keys);
+      assertEquals(4, encoded[0]);
+      assertTrue(encoded.length < keys.length);
+      assertArrayEquals(keys, codec.decode(encoded));
+    }
+
+    // keys that don't compress are stored, plain JSON ids issued without the codec still decode
+    byte[] stored = codec.encode("[7]".getBytes(StandardCharsets.UTF_8));
+    assertEquals(3, stored[0]);
+    assertEquals("[7]", new String(codec.decode(stored), StandardCharsets.UTF_8));
+    assertArrayEquals(BOOK, codec.decode(BOOK));
+
+    // a retired dictionary still decodes
+    DeflateCodec retrained = DeflateCodec.builder()
+        .addDictionary(1, dictionary)
+        .setDictionary(2, "{\"isbn\":\"\"}".getBytes(StandardCharsets.UTF_8))
+        .build();
+    assertArrayEquals(BOOK, retrained.decode(codec.encode(BOOK)));
+    assertEquals(5, retrained.encode("{\"isbn\":\"0261103571\"}".getBytes(StandardCharsets.UTF_8))[0]);
+
+    // binary keys pass, surrogate ids and unknown dictionaries don't
+    assertArrayEquals(new byte[] {1, 1, 2}, codec.decode(new byte[] {1, 1, 2}));
+    assertThrows(IllegalArgumentException.class, () -> codec.decode(new byte[] {0, 1}));
+    assertThrows(IllegalArgumentException.class, () -> retrained.decode(new byte[] {6, 1, 2}));
+    assertThrows(IllegalArgumentException.class, () -> codec.decode(new byte[] {5, 1, 2}));
+    assertThrows(IllegalArgumentException.class, () -> DeflateCodec.builder().setDictionary(120, dictionary));
+  }
+
+  @Test
+  void testFroidWithDeflate() {
+    List<Map<String, Object>> representations = new ArrayList<>();
+    representations.add(new HashMap<String, Object>() {{
+      put("__typename", "DemoBook");
+      put("bookId", 1);
+    }});
+    Froid plain = Froid.builder().build();
+    Froid froid = Froid.builder()
+        .setCodec(DeflateCodec.builder().setDictionary(1, DeflateCodec.train(new ObjectMapper(), representations))
+            .build())
+        .build();
+
+    String plainId = plain.generateEntityObjectWithId(representations).getData().getEntities().get(0).getId();
+    String binaryId = Froid.builder().setKeyFormat(KeyFormat.BINARY).build()
+        .generateEntityObjectWithId(representations).getData().getEntities().get(0).getId();
+    String id = froid.generateEntityObjectWithId(representations).getData().getEntities().get(0).getId();
+    assertTrue(id.length() < plainId.length());
+
+    for (String nodeId : Arrays.asList(id, plainId, binaryId)) {
+      Request request = Request.builder()
+          .setQuery("query book__node_relay_service__0($nodeId:ID!) {node(id:$nodeId){__typename}}")
+          .setVariables(Collections.singletonMap("nodeId", nodeId))
+          .build();
+      EntityObjectResponse response = (EntityObjectResponse) froid.handleFroidRequest(request);
+      assertEquals(1, ((Map) response.getData().get("node")).get("bookId"));
+    }
+  }
+
+  @Test
+  void testSurrogateKeyStore(@TempDir Path directory) throws IOException {
+    Path path = directory.resolve("keys");
+    byte[] author = "{\"authorId\":1}".getBytes(StandardCharsets.UTF_8);
+    byte[] longKeys = "{\"authorName\":\"a very long composite key\"}".getBytes(StandardCharsets.UTF_8);
+    byte[] book;
+    byte[] authorId;
+    try (SurrogateKeyStore store = SurrogateKeyStore.open(path, 2, 1024, 32)) {
+      book = store.encode(BOOK);
+      authorId = store.encode(author);
+      assertArrayEquals(new byte[] {0, 0}, book);
+      assertArrayEquals(new byte[] {0, 1}, authorId);
+      assertArrayEquals(book, store.encode(BOOK));
+      assertEquals(2, store.size());
+
+      // too long, or the store is full: the keys are written as is
+      assertArrayEquals(longKeys, store.encode(longKeys));
+      assertArrayEquals(BOOK, store.decode(BOOK));
+      byte[] full = "{\"bookId\":2}".getBytes(StandardCharsets.UTF_8);
+      assertArrayEquals(full, store.encode(full));
+
+      assertThrows(IllegalArgumentException.class, () -> store.decode(new byte[] {0, 2}));
+      assertThrows(IllegalArgumentException.class, () -> store.decode(new byte[] {0, (byte) 0x80}));
+    }
+
+    // the keys survive a restart, and a second store on the same file sees appends of the first
+    try (SurrogateKeyStore store = SurrogateKeyStore.open(path)) {
+      assertArrayEquals(BOOK, store.decode(book));
+      assertArrayEquals(author, store.decode(authorId));
+      assertEquals(2, store.size());
+    }
+
+    Path shared = directory.resolve("shared");
+    try (SurrogateKeyStore first = SurrogateKeyStore.open(shared, 1024, 1 << 16, 4096);
+        SurrogateKeyStore second = SurrogateKeyStore.open(shared)) {
+      byte[] id = first.encode(author);
+      assertArrayEquals(author, second.decode(id));
+      assertArrayEquals(id, second.encode(author));
+      assertArrayEquals(new byte[] {0, 1}, second.encode(BOOK));
+      assertArrayEquals(new byte[] {0, 1}, first.encode(BOOK));
+
+      // unknown surrogates are rejected without waiting for the file lock
+      try (FileChannel channel = FileChannel.open(shared, StandardOpenOption.WRITE);
+          FileLock lock = channel.lock()) {
+        assertThrows(IllegalArgumentException.class, () -> second.decode(new byte[] {0, 2}));
+      }
+    }
+  }
+
+  @Test
+  void testFroidWithSurrogateKeys(@TempDir Path directory) throws IOException {
+    List<Map<String, Object>> representations = new ArrayList<>();
+    representations.add(new HashMap<String, Object>() {{
+      put("__typename", "DemoEdition");
+      put("isbn", "978-0-261-10357-3");
+      put("publisher", "HarperCollins");
+      put("format", "paperback");
+    }});
+
+    try (SurrogateKeyStore store = SurrogateKeyStore.open(directory.resolve("keys"))) {
+      Froid froid = Froid.builder().setCodec("DemoEdition", store).build();
+      String id = froid.generateEntityObjectWithId(representations).getData().getEntities().get(0).getId();
+      assertEquals(Froid.builder().build().toGlobalId("DemoEdition", "AAA="), id);
+
+      Request request = Request.builder()
+          .setQuery("query edition__node_relay_service__0($nodeId:ID!) {node(id:$nodeId){__typename}}")
+          .setVariables(Collections.singletonMap("nodeId", id))
+          .build();
+      EntityObjectResponse response = (EntityObjectResponse) froid.handleFroidRequest(request);
+      assertEquals("HarperCollins", ((Map) response.getData().get("node")).get("publisher"));
+    }
+  }
+}